@@ -1,8 +1,15 @@
 package com.ekosutrisno;
 
+import com.ekosutrisno.caches.RoleGrantCache;
 import com.ekosutrisno.models.User;
+import com.ekosutrisno.repositories.LoginRecorder;
 import com.ekosutrisno.repositories.UserRepository;
+import com.ekosutrisno.repositories.UserRoleRepository;
 import com.ekosutrisno.services.UserRepresentationService;
+import com.ekosutrisno.throttling.LoginThrottle;
+import com.ekosutrisno.tracing.Span;
+import com.ekosutrisno.tracing.Tracer;
+import org.keycloak.common.ClientConnection;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.credential.CredentialInput;
 import org.keycloak.credential.CredentialInputUpdater;
@@ -33,11 +40,34 @@ public class ErajayaKeycloakStorageProvider implements UserStorageProvider,
 
 
     private final UserRepository userRepository;
+    private final UserRoleRepository userRoleRepository;
+    private final RoleGrantCache roleGrantCache;
+    private final boolean federatedRoleFallback;
+    private final Tracer tracer;
+    private final LoginThrottle loginThrottle;
+    private final boolean throttlePerClientIp;
+    private final LoginRecorder loginRecorder;
     KeycloakSession keycloakSession;
     ComponentModel componentModel;
 
-    public ErajayaKeycloakStorageProvider(UserRepository userRepository, KeycloakSession keycloakSession, ComponentModel componentModel) {
+    public ErajayaKeycloakStorageProvider(UserRepository userRepository,
+                                          UserRoleRepository userRoleRepository,
+                                          RoleGrantCache roleGrantCache,
+                                          boolean federatedRoleFallback,
+                                          Tracer tracer,
+                                          LoginThrottle loginThrottle,
+                                          boolean throttlePerClientIp,
+                                          LoginRecorder loginRecorder,
+                                          KeycloakSession keycloakSession,
+                                          ComponentModel componentModel) {
         this.userRepository = userRepository;
+        this.userRoleRepository = userRoleRepository;
+        this.roleGrantCache = roleGrantCache;
+        this.federatedRoleFallback = federatedRoleFallback;
+        this.tracer = tracer;
+        this.loginThrottle = loginThrottle;
+        this.throttlePerClientIp = throttlePerClientIp;
+        this.loginRecorder = loginRecorder;
         this.keycloakSession = keycloakSession;
         this.componentModel = componentModel;
     }
@@ -49,17 +79,35 @@ public class ErajayaKeycloakStorageProvider implements UserStorageProvider,
 
     @Override
     public boolean isConfiguredFor(RealmModel realm, UserModel user, String credentialType) {
-        return supportsCredentialType(credentialType) && getPassword(user) != null;
+        try (Span ignored = tracer.startSpan("ErajayaKeycloakStorageProvider.isConfiguredFor")) {
+            return supportsCredentialType(credentialType) && getPassword(user) != null;
+        }
     }
 
     @Override
     public boolean isValid(RealmModel realm, UserModel user, CredentialInput credentialInput) {
-        if (!(credentialInput instanceof UserCredentialModel)) return false;
-        if (supportsCredentialType(credentialInput.getType())) {
-            String password = getPassword(user);
-            return password != null && password.equals(credentialInput.getChallengeResponse());
-        } else {
-            return false; // invalid cred type
+        try (Span ignored = tracer.startSpan("ErajayaKeycloakStorageProvider.isValid")) {
+            if (!(credentialInput instanceof UserCredentialModel)) return false;
+            if (supportsCredentialType(credentialInput.getType())) {
+                if (isThrottled(user.getUsername())) return false;
+                String password = getPassword(user);
+                boolean valid = password != null && password.equals(credentialInput.getChallengeResponse());
+                if (!valid) {
+                    // Count under both login names, Keycloak accepts either in the login form
+                    String usernameKey = getThrottleKey(user.getUsername());
+                    String emailKey = getThrottleKey(user.getEmail());
+                    loginThrottle.recordFailure(usernameKey);
+                    // Users whose username is their email would otherwise count every failure twice
+                    if (emailKey != null && !emailKey.equals(usernameKey)) {
+                        loginThrottle.recordFailure(emailKey);
+                    }
+                } else if (loginRecorder != null) {
+                    loginRecorder.recordLogin(UUID.fromString(StorageId.externalId(user.getId())));
+                }
+                return valid;
+            } else {
+                return false; // invalid cred type
+            }
         }
     }
 
@@ -70,28 +118,36 @@ public class ErajayaKeycloakStorageProvider implements UserStorageProvider,
 
     @Override
     public boolean updateCredential(RealmModel realm, UserModel userModel, CredentialInput input) {
-        if (!supportsCredentialType(input.getType()) || !(input instanceof UserCredentialModel)) return false;
-        User user = new User();
-        user.setUsername(userModel.getUsername());
-        user.setPassword(input.getChallengeResponse());
-        userRepository.updateUser(user);
-        return true;
+        try (Span ignored = tracer.startSpan("ErajayaKeycloakStorageProvider.updateCredential")) {
+            if (!supportsCredentialType(input.getType()) || !(input instanceof UserCredentialModel)) return false;
+            // Update the stored user of this realm, never merge a new one
+            Optional<User> optionalUser = userRepository.getUserByUsername(userModel.getUsername());
+            if (!optionalUser.isPresent()) return false;
+            User user = optionalUser.get();
+            user.setPassword(input.getChallengeResponse());
+            userRepository.updateUser(user);
+            return true;
+        }
     }
 
     @Override
     public void disableCredentialType(RealmModel realm, UserModel user, String credentialType) {
-        if (!supportsCredentialType(credentialType)) return;
-        getUserRepresentation(user).setPassword(null);
+        try (Span ignored = tracer.startSpan("ErajayaKeycloakStorageProvider.disableCredentialType")) {
+            if (!supportsCredentialType(credentialType)) return;
+            getUserRepresentation(user).setPassword(null);
+        }
     }
 
     @Override
     public Set<String> getDisableableCredentialTypes(RealmModel realm, UserModel user) {
-        if (getUserRepresentation(user).getPassword() != null) {
-            Set<String> set = new HashSet<>();
-            set.add(PasswordCredentialModel.TYPE);
-            return set;
-        } else {
-            return Collections.emptySet();
+        try (Span ignored = tracer.startSpan("ErajayaKeycloakStorageProvider.getDisableableCredentialTypes")) {
+            if (getUserRepresentation(user).getPassword() != null) {
+                Set<String> set = new HashSet<>();
+                set.add(PasswordCredentialModel.TYPE);
+                return set;
+            } else {
+                return Collections.emptySet();
+            }
         }
     }
 
@@ -106,44 +162,55 @@ public class ErajayaKeycloakStorageProvider implements UserStorageProvider,
     }
 
     public UserRepresentationService getUserRepresentation(User user, RealmModel realm) {
-        return new UserRepresentationService(keycloakSession, realm, componentModel, user, userRepository);
+        return new UserRepresentationService(keycloakSession, realm, componentModel, user, userRepository,
+                userRoleRepository, roleGrantCache, federatedRoleFallback);
     }
 
     @Override
     public int getUsersCount(RealmModel realm) {
-        return userRepository.size();
+        try (Span ignored = tracer.startSpan("ErajayaKeycloakStorageProvider.getUsersCount")) {
+            return userRepository.size();
+        }
     }
 
     @Override
     public List<UserModel> getUsers(RealmModel realm) {
-        return userRepository.findAll()
-                .stream()
-                .map(user -> new UserRepresentationService(keycloakSession, realm, componentModel, user, userRepository))
-                .collect(Collectors.toList());
+        try (Span ignored = tracer.startSpan("ErajayaKeycloakStorageProvider.getUsers")) {
+            return userRepository.findAll()
+                    .stream()
+                    .map(user -> getUserRepresentation(user, realm))
+                    .collect(Collectors.toList());
+        }
     }
 
     @Override
     public List<UserModel> getUsers(RealmModel realm, int firstResult, int maxResults) {
-        return userRepository.findAll(firstResult, maxResults)
-                .stream()
-                .map(user -> new UserRepresentationService(keycloakSession, realm, componentModel, user, userRepository))
-                .collect(Collectors.toList());
+        try (Span ignored = tracer.startSpan("ErajayaKeycloakStorageProvider.getUsers")) {
+            return userRepository.findAll(firstResult, maxResults)
+                    .stream()
+                    .map(user -> getUserRepresentation(user, realm))
+                    .collect(Collectors.toList());
+        }
     }
 
     @Override
     public List<UserModel> searchForUser(String search, RealmModel realm) {
-        return userRepository.searchForUserByUsernameOrEmail(search)
-                .stream()
-                .map(user -> new UserRepresentationService(keycloakSession, realm, componentModel, user, userRepository))
-                .collect(Collectors.toList());
+        try (Span ignored = tracer.startSpan("ErajayaKeycloakStorageProvider.searchForUser")) {
+            return userRepository.searchForUserByUsernameOrEmail(search)
+                    .stream()
+                    .map(user -> getUserRepresentation(user, realm))
+                    .collect(Collectors.toList());
+        }
     }
 
     @Override
     public List<UserModel> searchForUser(String search, RealmModel realm, int firstResult, int maxResults) {
-        return userRepository.searchForUserByUsernameOrEmail(search, firstResult, maxResults)
-                .stream()
-                .map(user -> new UserRepresentationService(keycloakSession, realm, componentModel, user, userRepository))
-                .collect(Collectors.toList());
+        try (Span ignored = tracer.startSpan("ErajayaKeycloakStorageProvider.searchForUser")) {
+            return userRepository.searchForUserByUsernameOrEmail(search, firstResult, maxResults)
+                    .stream()
+                    .map(user -> getUserRepresentation(user, realm))
+                    .collect(Collectors.toList());
+        }
     }
 
     @Override
@@ -155,10 +222,12 @@ public class ErajayaKeycloakStorageProvider implements UserStorageProvider,
     @Override
     public List<UserModel> searchForUser(Map<String, String> params, RealmModel realm, int firstResult,
                                          int maxResults) {
-        return userRepository.findAll(firstResult, maxResults)
-                .stream()
-                .map(user -> new UserRepresentationService(keycloakSession, realm, componentModel, user, userRepository))
-                .collect(Collectors.toList());
+        try (Span ignored = tracer.startSpan("ErajayaKeycloakStorageProvider.searchForUser")) {
+            return userRepository.findAll(firstResult, maxResults)
+                    .stream()
+                    .map(user -> getUserRepresentation(user, realm))
+                    .collect(Collectors.toList());
+        }
     }
 
     @Override
@@ -181,40 +250,57 @@ public class ErajayaKeycloakStorageProvider implements UserStorageProvider,
 
     @Override
     public UserModel getUserById(String keycloakId, RealmModel realm) {
-        // keycloakId := keycloak internal id; needs to be mapped to external id
-        String id = StorageId.externalId(keycloakId);
-        return new UserRepresentationService(keycloakSession, realm, componentModel, userRepository.getUserById(id), userRepository);
+        try (Span ignored = tracer.startSpan("ErajayaKeycloakStorageProvider.getUserById")) {
+            // keycloakId := keycloak internal id; needs to be mapped to external id
+            String id = StorageId.externalId(keycloakId);
+            // Deleted, or not in this provider's realm, Keycloak then drops its federation link
+            User user = userRepository.getUserById(id);
+            return user == null ? null : getUserRepresentation(user, realm);
+        }
     }
 
     @Override
     public UserModel getUserByUsername(String username, RealmModel realm) {
-        Optional<User> optionalUser = userRepository.getUserByUsername(username);
-        return optionalUser.map(user -> getUserRepresentation(user, realm)).orElse(null);
+        try (Span ignored = tracer.startSpan("ErajayaKeycloakStorageProvider.getUserByUsername")) {
+            // Shed throttled attempts before they reach the database
+            if (isThrottled(username)) return null;
+            Optional<User> optionalUser = userRepository.getUserByUsername(username);
+            return optionalUser.map(user -> getUserRepresentation(user, realm)).orElse(null);
+        }
     }
 
     @Override
     public UserModel getUserByEmail(String email, RealmModel realm) {
-        Optional<User> optionalUser = userRepository.getUserByEmail(email);
-        return optionalUser.map(user -> getUserRepresentation(user, realm)).orElse(null);
+        try (Span ignored = tracer.startSpan("ErajayaKeycloakStorageProvider.getUserByEmail")) {
+            if (isThrottled(email)) return null;
+            Optional<User> optionalUser = userRepository.getUserByEmail(email);
+            return optionalUser.map(user -> getUserRepresentation(user, realm)).orElse(null);
+        }
     }
 
     @Override
     public UserModel addUser(RealmModel realm, String username) {
-        User user = new User();
-        user.setUsername(username);
-        user = userRepository.createUser(user);
+        try (Span ignored = tracer.startSpan("ErajayaKeycloakStorageProvider.addUser")) {
+            User user = new User();
+            user.setUsername(username);
+            user = userRepository.createUser(user);
 
-        return new UserRepresentationService(keycloakSession, realm, componentModel, user, userRepository);
+            return getUserRepresentation(user, realm);
+        }
     }
 
     @Override
     public boolean removeUser(RealmModel realm, UserModel user) {
-        User userEntity = userRepository.getUserById(StorageId.externalId(user.getId()));
-        if (userEntity == null) {
-            return false;
+        try (Span ignored = tracer.startSpan("ErajayaKeycloakStorageProvider.removeUser")) {
+            User userEntity = userRepository.getUserById(StorageId.externalId(user.getId()));
+            if (userEntity == null) {
+                return false;
+            }
+            userRoleRepository.deleteRolesByUserId(userEntity.getId());
+            roleGrantCache.invalidate(userEntity.getId());
+            userRepository.deleteUser(userEntity);
+            return true;
         }
-        userRepository.deleteUser(userEntity);
-        return true;
     }
 
     public String getPassword(UserModel user) {
@@ -225,4 +311,21 @@ public class ErajayaKeycloakStorageProvider implements UserStorageProvider,
         return password;
     }
 
+    private boolean isThrottled(String login) {
+        return loginThrottle.isEnabled() && loginThrottle.isBlocked(getThrottleKey(login));
+    }
+
+    private String getThrottleKey(String login) {
+        if (login == null) {
+            return null;
+        }
+        String key = login.toLowerCase(Locale.ROOT);
+        if (throttlePerClientIp) {
+            ClientConnection connection = keycloakSession.getContext().getConnection();
+            if (connection != null) {
+                key = key + "@" + connection.getRemoteAddr();
+            }
+        }
+        return key;
+    }
 }
@@ -1,17 +1,33 @@
 package com.ekosutrisno;
 
+import com.ekosutrisno.caches.RoleGrantCache;
+import com.ekosutrisno.caches.UserExistenceFilter;
 import com.ekosutrisno.models.User;
+import com.ekosutrisno.models.UserRole;
+import com.ekosutrisno.repositories.LoginRecorder;
+import com.ekosutrisno.repositories.UserLoginListener;
 import com.ekosutrisno.repositories.UserRepository;
+import com.ekosutrisno.repositories.UserRoleRepository;
+import com.ekosutrisno.throttling.LoginThrottle;
+import com.ekosutrisno.tracing.Tracer;
+import com.ekosutrisno.tracing.TracingSessionEventListener;
+import com.ekosutrisno.tracing.TracingStatementInspector;
+import org.hibernate.SessionFactory;
 import org.hibernate.jpa.HibernatePersistenceProvider;
+import org.jboss.logging.Logger;
 import org.keycloak.common.util.MultivaluedHashMap;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.component.ComponentValidationException;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.provider.ProviderConfigProperty;
 import org.keycloak.provider.ProviderConfigurationBuilder;
+import org.keycloak.storage.UserStorageProvider;
 import org.keycloak.storage.UserStorageProviderFactory;
 
+import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.SharedCacheMode;
 import javax.persistence.ValidationMode;
@@ -22,7 +38,14 @@ import javax.sql.DataSource;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.net.URL;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Eko Sutrisno
@@ -31,8 +54,26 @@ import java.util.*;
 public class ErajayaKeycloakStorageProviderFactory implements UserStorageProviderFactory<ErajayaKeycloakStorageProvider> {
     public static final int PORT_LIMIT = 65535;
     public static final String PROVIDER_NAME_ID = "bismillah-user-provider";
-    Map<String, String> properties;
-    Map<String, EntityManagerFactory> entityManagerFactories = new HashMap<>();
+    private static final Logger logger = Logger.getLogger(ErajayaKeycloakStorageProviderFactory.class);
+    Map<String, EntityManagerFactory> entityManagerFactories = new ConcurrentHashMap<>();
+    Map<String, RoleGrantCache> roleGrantCaches = new ConcurrentHashMap<>();
+    Map<String, LoginThrottle> loginThrottles = new ConcurrentHashMap<>();
+    Map<String, UserExistenceFilter> existenceFilters = new ConcurrentHashMap<>();
+    Map<String, ScheduledFuture<?>> existenceFilterRebuilds = new ConcurrentHashMap<>();
+    Map<String, UserLoginListener> userLoginListeners = new ConcurrentHashMap<>();
+    Map<String, LoginRecorder> loginRecorders = new ConcurrentHashMap<>();
+    Map<String, ScheduledFuture<?>> loginRecorderFlushes = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService backgroundExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, PROVIDER_NAME_ID + "-background");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /* Login flushes never queue behind warm-ups or filter rebuilds, which bounds the logins lost on a crash */
+    private final ScheduledExecutorService loginFlushExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, PROVIDER_NAME_ID + "-login-flush");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     protected static final List<ProviderConfigProperty> configMetadata;
 
@@ -42,6 +83,29 @@ public class ErajayaKeycloakStorageProviderFactory implements UserStorageProvide
     public static final String DB_USERNAME_KEY = "db:username";
     public static final String DB_PASSWORD_KEY = "db:password";
     public static final String DB_PORT_KEY = "db:port";
+    public static final String DB_PRODUCTION_MODE_KEY = "db:productionMode";
+    public static final String DB_SCHEMA_ACTION_KEY = "db:schemaAction";
+    public static final String DB_REALM_SCOPED_KEY = "db:realmScoped";
+    public static final String CACHE_ROLE_GRANT_MAX_ENTRIES_KEY = "cache:roleGrantMaxEntries";
+    public static final String CACHE_ROLE_GRANT_TTL_SECONDS_KEY = "cache:roleGrantTtlSeconds";
+    public static final String ROLES_FEDERATED_FALLBACK_KEY = "roles:federatedFallback";
+    public static final String THROTTLE_MAX_FAILURES_KEY = "throttle:maxFailures";
+    public static final String THROTTLE_WINDOW_SECONDS_KEY = "throttle:windowSeconds";
+    public static final String THROTTLE_PER_CLIENT_IP_KEY = "throttle:perClientIp";
+    public static final String FILTER_ENABLED_KEY = "filter:enabled";
+    public static final String FILTER_FALSE_POSITIVE_RATE_KEY = "filter:falsePositiveRate";
+    public static final String FILTER_REBUILD_INTERVAL_MINUTES_KEY = "filter:rebuildIntervalMinutes";
+    public static final String FILTER_PERSIST_DIRECTORY_KEY = "filter:persistDirectory";
+    public static final String LOGIN_STATS_ENABLED_KEY = "loginStats:enabled";
+    public static final String LOGIN_STATS_FLUSH_INTERVAL_SECONDS_KEY = "loginStats:flushIntervalSeconds";
+    public static final String LOGIN_STATS_MAX_BUFFERED_USERS_KEY = "loginStats:maxBufferedUsers";
+    public static final String TRACE_ENABLED_KEY = "trace:enabled";
+    public static final String TRACE_SLOW_QUERY_THRESHOLD_MS_KEY = "trace:slowQueryThresholdMs";
+
+    public static final String SCHEMA_ACTION_UPDATE = "update";
+    public static final String SCHEMA_ACTION_VALIDATE = "validate";
+    public static final String SCHEMA_ACTION_NONE = "none";
+    protected static final List<String> SCHEMA_ACTIONS = Arrays.asList(SCHEMA_ACTION_UPDATE, SCHEMA_ACTION_VALIDATE, SCHEMA_ACTION_NONE);
 
     static {
         configMetadata = ProviderConfigurationBuilder.create()
@@ -87,6 +151,144 @@ public class ErajayaKeycloakStorageProviderFactory implements UserStorageProvide
                 .label("Database Port")
                 .defaultValue("3306")
                 .add()
+
+                // Production Mode
+                .property().name(DB_PRODUCTION_MODE_KEY)
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .label("Production Mode")
+                .defaultValue("false")
+                .helpText("Registers the entities explicitly without classpath scanning and builds the connection in the background at startup.")
+                .add()
+
+                // Schema Action
+                .property().name(DB_SCHEMA_ACTION_KEY)
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .label("Schema Action")
+                .options(SCHEMA_ACTIONS)
+                .defaultValue(SCHEMA_ACTION_UPDATE)
+                .helpText("Schema handling on startup. 'update' introspects and alters the schema, use 'validate' or 'none' with versioned migrations in production: apply db/V1__create_tbl_user.sql, db/V2__create_tbl_user_role.sql, db/V3__alter_tbl_user_add_realm_id.sql and db/V4__alter_tbl_user_add_login_stats.sql in order.")
+                .add()
+
+                // Realm Scoped
+                .property().name(DB_REALM_SCOPED_KEY)
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .label("Realm Scoped Users")
+                .defaultValue("false")
+                .helpText("Stores users with the id of the realm owning this provider, so providers sharing a connection only see their own users. Existing databases must first run db/tbl_user_realm_unique_constraints.sql or db/tbl_user_partition_by_realm.sql, which assign the users stored so far to the realm.")
+                .add()
+
+                // Role Grant Cache Size
+                .property().name(CACHE_ROLE_GRANT_MAX_ENTRIES_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Role Grant Cache Size")
+                .defaultValue("10000")
+                .helpText("Maximum number of users whose role grants are cached on this node. 0 disables the cache.")
+                .add()
+
+                // Role Grant Cache Ttl
+                .property().name(CACHE_ROLE_GRANT_TTL_SECONDS_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Role Grant Cache TTL (s)")
+                .defaultValue("60")
+                .helpText("Time cached role grants are used before being reloaded. Bounds how long a role revoked on another node is still granted here. 0 disables the cache.")
+                .add()
+
+                // Federated Role Fallback
+                .property().name(ROLES_FEDERATED_FALLBACK_KEY)
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .label("Federated Role Fallback")
+                .defaultValue("true")
+                .helpText("Also reads role mappings Keycloak stored in federated storage before tbl_user_role was used, one query per role read. Turn off after running db/fed_user_role_mapping_to_tbl_user_role.sql.")
+                .add()
+
+                // Login Throttle
+                .property().name(THROTTLE_MAX_FAILURES_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Login Throttle Max Failures")
+                .defaultValue("0")
+                .helpText("Failed logins per user within the throttle window after which further attempts are rejected without a database lookup. 0 disables the throttle.")
+                .add()
+
+                .property().name(THROTTLE_WINDOW_SECONDS_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Login Throttle Window (s)")
+                .defaultValue("60")
+                .helpText("Length of the throttle window. A failure is counted for one to two windows.")
+                .add()
+
+                .property().name(THROTTLE_PER_CLIENT_IP_KEY)
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .label("Login Throttle Per Client IP")
+                .defaultValue("false")
+                .helpText("Counts failures per user and client ip instead of per user only.")
+                .add()
+
+                // Existence Filter
+                .property().name(FILTER_ENABLED_KEY)
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .label("Existence Filter")
+                .defaultValue("false")
+                .helpText("Answers lookups of unknown usernames and emails from an in-memory Bloom filter instead of the database. Requires db/tbl_user_login_notify.sql, which passes users written by other nodes or applications to the filter over one extra connection. Until it has been run, and while that connection is down, every lookup goes to the database.")
+                .add()
+
+                .property().name(FILTER_FALSE_POSITIVE_RATE_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Existence Filter False Positive Rate")
+                .defaultValue("0.01")
+                .helpText("Share of unknown logins that still reach the database. Lower rates use more memory.")
+                .add()
+
+                .property().name(FILTER_REBUILD_INTERVAL_MINUTES_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Existence Filter Rebuild Interval (min)")
+                .defaultValue("60")
+                .helpText("Interval between rebuilds of the filter from the user table, which drop deleted users from it.")
+                .add()
+
+                .property().name(FILTER_PERSIST_DIRECTORY_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Existence Filter Directory")
+                .defaultValue("")
+                .helpText("Directory the filter is saved to after each rebuild. On startup it is used until the first rebuild completes if no username or email was written since it was saved. Empty keeps it in memory only.")
+                .add()
+
+                // Login Statistics
+                .property().name(LOGIN_STATS_ENABLED_KEY)
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .label("Login Statistics")
+                .defaultValue("false")
+                .helpText("Tracks last login time and login count of every user, written to the database in batches.")
+                .add()
+
+                .property().name(LOGIN_STATS_FLUSH_INTERVAL_SECONDS_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Login Statistics Flush Interval (s)")
+                .defaultValue("5")
+                .helpText("Maximum time logins stay buffered in memory, bounds what is lost if the node crashes.")
+                .add()
+
+                .property().name(LOGIN_STATS_MAX_BUFFERED_USERS_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Login Statistics Buffer Size")
+                .defaultValue("1000")
+                .helpText("Number of users with buffered logins that triggers an early flush.")
+                .add()
+
+                // Tracing
+                .property().name(TRACE_ENABLED_KEY)
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .label("Tracing")
+                .defaultValue("false")
+                .helpText("Logs a span with duration, connection acquire time and row count for every provider call and repository query.")
+                .add()
+
+                // Slow Query Threshold
+                .property().name(TRACE_SLOW_QUERY_THRESHOLD_MS_KEY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Slow Query Threshold (ms)")
+                .defaultValue("0")
+                .helpText("Repository queries slower than this are logged with their SQL and timing. 0 disables the slow query log.")
+                .add()
                 .build();
     }
 
@@ -101,44 +303,305 @@ public class ErajayaKeycloakStorageProviderFactory implements UserStorageProvide
         return configMetadata;
     }
 
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        // Build the factories of every configured component before the first login needs them
+        backgroundExecutor.execute(() -> KeycloakModelUtils.runJobInTransaction(factory, session ->
+                session.realms().getRealmsStream()
+                        .flatMap(realm -> realm.getComponentsStream(realm.getId(), UserStorageProvider.class.getName()))
+                        .filter(component -> getId().equals(component.getProviderId()))
+                        .forEach(this::initComponent)));
+    }
+
+    @Override
+    public void onCreate(KeycloakSession session, RealmModel realm, ComponentModel model) {
+        backgroundExecutor.execute(() -> initComponent(model));
+    }
+
+    private void initComponent(ComponentModel model) {
+        if (isProductionMode(model)) {
+            warmUpEntityManagerFactory(model);
+        }
+        // Start building the existence filter at startup instead of on the first login
+        if (isExistenceFilterEnabled(model)) {
+            getExistenceFilter(model);
+        }
+    }
+
+    @Override
+    public void close() {
+        userLoginListeners.values().forEach(UserLoginListener::close);
+        // Let a running flush or rebuild finish, periodic tasks are cancelled by shutdown()
+        shutdown(loginFlushExecutor);
+        shutdown(backgroundExecutor);
+        loginRecorders.values().forEach(LoginRecorder::flush);
+        entityManagerFactories.values().forEach(EntityManagerFactory::close);
+        entityManagerFactories.clear();
+    }
+
+    private static void shutdown(ScheduledExecutorService executor) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
     @Override
     public ErajayaKeycloakStorageProvider create(KeycloakSession session, ComponentModel model) {
-        properties = new HashMap<>();
-        String dbConnectionName = model.getConfig().getFirst("db:connectionName");
-        EntityManagerFactory entityManagerFactory = entityManagerFactories.get(dbConnectionName);
-
-        if (entityManagerFactory == null) {
-            MultivaluedHashMap<String, String> config = model.getConfig();
-            properties.put("hibernate.connection.driver_class", "org.postgresql.Driver");
-//            properties.put("hibernate.dialect", "org.hibernate.dialect.PostgreSQLDialect");
-            properties.put("hibernate.connection.url",
-                    String.format("jdbc:postgresql://%s:%s/%s",
-                            config.getFirst(DB_HOST_KEY),
-                            config.getFirst(DB_PORT_KEY),
-                            config.getFirst(DB_DATABASE_KEY)));
-            properties.put("hibernate.connection.username", config.getFirst(DB_USERNAME_KEY));
-            properties.put("hibernate.connection.password", config.getFirst(DB_PASSWORD_KEY));
-            properties.put("hibernate.show-sql", "true");
-            properties.put("hibernate.archive.autodetection", "class, hbm");
-            properties.put("hibernate.hbm2ddl.auto", "update");
-            properties.put("hibernate.connection.autocommit", "true");
+        String dbConnectionName = model.getConfig().getFirst(DB_CONNECTION_NAME_KEY);
+        EntityManagerFactory entityManagerFactory = getEntityManagerFactory(model);
+        String realmId = getRealmId(model);
+
+        // Realm scoped providers get their own cache so one tenant cannot evict another's entries
+        RoleGrantCache roleGrantCache = roleGrantCaches.computeIfAbsent(getCacheKey(dbConnectionName, realmId),
+                name -> new RoleGrantCache(getRoleGrantMaxEntries(model),
+                        getIntConfig(model, CACHE_ROLE_GRANT_TTL_SECONDS_KEY, 60)));
+
+        boolean federatedRoleFallback = isFederatedRoleFallback(model);
+
+        LoginThrottle loginThrottle = loginThrottles.computeIfAbsent(getCacheKey(dbConnectionName, realmId),
+                name -> new LoginThrottle(name, getIntConfig(model, THROTTLE_MAX_FAILURES_KEY, 0),
+                        getIntConfig(model, THROTTLE_WINDOW_SECONDS_KEY, 60)));
+        boolean throttlePerClientIp = Boolean.parseBoolean(model.getConfig().getFirst(THROTTLE_PER_CLIENT_IP_KEY));
 
-            System.out.println(properties.entrySet());
+        UserExistenceFilter existenceFilter = getExistenceFilter(model);
 
-            entityManagerFactory = new HibernatePersistenceProvider().createContainerEntityManagerFactory(getPersistenceUnitInfo(), properties);
-            entityManagerFactories.put(dbConnectionName, entityManagerFactory);
+        LoginRecorder loginRecorder = null;
+        if (Boolean.parseBoolean(model.getConfig().getFirst(LOGIN_STATS_ENABLED_KEY))) {
+            loginRecorder = loginRecorders.computeIfAbsent(getCacheKey(dbConnectionName, realmId),
+                    key -> createLoginRecorder(model, key, realmId, entityManagerFactory));
         }
-        UserRepository userRepository = new UserRepository(entityManagerFactory.createEntityManager());
-        return new ErajayaKeycloakStorageProvider(userRepository, session, model);
+
+        Tracer tracer = new Tracer(isTraceEnabled(model), getSlowQueryThresholdMillis(model));
+        EntityManager entityManager;
+        if (tracer.isActive()) {
+            entityManager = entityManagerFactory.unwrap(SessionFactory.class)
+                    .withOptions()
+                    .eventListeners(TracingSessionEventListener.INSTANCE)
+                    .openSession();
+        } else {
+            entityManager = entityManagerFactory.createEntityManager();
+        }
+        UserRepository userRepository = new UserRepository(entityManager, tracer, realmId, existenceFilter);
+        UserRoleRepository userRoleRepository = new UserRoleRepository(entityManager, tracer);
+        return new ErajayaKeycloakStorageProvider(userRepository, userRoleRepository, roleGrantCache,
+                federatedRoleFallback, tracer,
+                loginThrottle, throttlePerClientIp, loginRecorder, session, model);
     }
 
     @Override
     public void onUpdate(KeycloakSession session, RealmModel realm, ComponentModel oldModel, ComponentModel newModel) {
         String oldCnName = oldModel.getConfig().getFirst(DB_CONNECTION_NAME_KEY);
         entityManagerFactories.remove(oldCnName);
+        release(oldModel);
         onCreate(session, realm, newModel);
     }
 
+    @Override
+    public void preRemove(KeycloakSession session, RealmModel realm, ComponentModel model) {
+        // The EntityManagerFactory stays, other components may share the connection
+        release(model);
+    }
+
+    /* Stops the background tasks of a component and drops its caches, buffered logins are written first */
+    private void release(ComponentModel model) {
+        String dbConnectionName = model.getConfig().getFirst(DB_CONNECTION_NAME_KEY);
+        String realmId = getRealmId(model);
+        String key = getCacheKey(dbConnectionName, realmId);
+        roleGrantCaches.remove(key);
+        loginThrottles.remove(key);
+        existenceFilters.remove(key);
+        ScheduledFuture<?> rebuild = existenceFilterRebuilds.remove(key);
+        if (rebuild != null) {
+            rebuild.cancel(false);
+        }
+        UserLoginListener userLoginListener = userLoginListeners.get(dbConnectionName);
+        if (userLoginListener != null) {
+            userLoginListener.unregister(realmId);
+            if (userLoginListener.isEmpty()) {
+                userLoginListeners.remove(dbConnectionName).close();
+            }
+        }
+        ScheduledFuture<?> flush = loginRecorderFlushes.remove(key);
+        if (flush != null) {
+            flush.cancel(false);
+        }
+        LoginRecorder loginRecorder = loginRecorders.remove(key);
+        if (loginRecorder != null) {
+            loginRecorder.flush();
+        }
+    }
+
+    EntityManagerFactory getEntityManagerFactory(ComponentModel model) {
+        String dbConnectionName = model.getConfig().getFirst(DB_CONNECTION_NAME_KEY);
+        // A create() racing the background warm-up waits for it instead of building a second factory
+        return entityManagerFactories.computeIfAbsent(dbConnectionName, name -> createEntityManagerFactory(model));
+    }
+
+    private EntityManagerFactory createEntityManagerFactory(ComponentModel model) {
+        long start = System.nanoTime();
+        EntityManagerFactory entityManagerFactory = new HibernatePersistenceProvider()
+                .createContainerEntityManagerFactory(getPersistenceUnitInfo(isProductionMode(model)),
+                        getHibernateProperties(model));
+        logger.infof("Built EntityManagerFactory for connection %s in %d ms",
+                model.getConfig().getFirst(DB_CONNECTION_NAME_KEY),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return entityManagerFactory;
+    }
+
+    static Map<String, Object> getHibernateProperties(ComponentModel model) {
+        MultivaluedHashMap<String, String> config = model.getConfig();
+        boolean productionMode = isProductionMode(model);
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("hibernate.connection.driver_class", "org.postgresql.Driver");
+//        properties.put("hibernate.dialect", "org.hibernate.dialect.PostgreSQLDialect");
+        properties.put("hibernate.connection.url", getJdbcUrl(model));
+        properties.put("hibernate.connection.username", config.getFirst(DB_USERNAME_KEY));
+        properties.put("hibernate.connection.password", config.getFirst(DB_PASSWORD_KEY));
+        if (!productionMode) {
+            properties.put("hibernate.archive.autodetection", "class, hbm");
+        }
+        properties.put("hibernate.hbm2ddl.auto", getSchemaAction(model));
+        properties.put("hibernate.connection.autocommit", "true");
+        properties.put("hibernate.session_factory.statement_inspector", TracingStatementInspector.INSTANCE);
+        return properties;
+    }
+
+    static String getJdbcUrl(ComponentModel model) {
+        MultivaluedHashMap<String, String> config = model.getConfig();
+        return String.format("jdbc:postgresql://%s:%s/%s",
+                config.getFirst(DB_HOST_KEY),
+                config.getFirst(DB_PORT_KEY),
+                config.getFirst(DB_DATABASE_KEY));
+    }
+
+    UserExistenceFilter getExistenceFilter(ComponentModel model) {
+        String realmId = getRealmId(model);
+        return existenceFilters.computeIfAbsent(
+                getCacheKey(model.getConfig().getFirst(DB_CONNECTION_NAME_KEY), realmId),
+                key -> createExistenceFilter(model, key, realmId));
+    }
+
+    private UserExistenceFilter createExistenceFilter(ComponentModel model, String key, String realmId) {
+        MultivaluedHashMap<String, String> config = model.getConfig();
+        String falsePositiveRate = config.getFirst(FILTER_FALSE_POSITIVE_RATE_KEY);
+        String persistDirectory = config.getFirst(FILTER_PERSIST_DIRECTORY_KEY);
+        Path persistFile = persistDirectory == null || persistDirectory.isEmpty()
+                ? null : Paths.get(persistDirectory, key.replaceAll("[^A-Za-z0-9._-]", "_") + ".bloom");
+        int rebuildInterval = getIntConfig(model, FILTER_REBUILD_INTERVAL_MINUTES_KEY, 60);
+        UserExistenceFilter existenceFilter = new UserExistenceFilter(key,
+                falsePositiveRate == null || falsePositiveRate.isEmpty() ? 0.01 : Double.parseDouble(falsePositiveRate),
+                persistFile);
+
+        // A filter that is never built, or never listening, lets every lookup through
+        if (isExistenceFilterEnabled(model)) {
+            Runnable rebuild = () -> rebuildExistenceFilter(model, realmId, existenceFilter);
+            UserLoginListener userLoginListener = getUserLoginListener(model);
+            // Loaded before registering, so the listener can use a persisted filter that is still current
+            backgroundExecutor.execute(() -> {
+                existenceFilter.load();
+                userLoginListener.register(realmId, existenceFilter, () -> backgroundExecutor.execute(rebuild));
+            });
+            existenceFilterRebuilds.put(key, backgroundExecutor.scheduleWithFixedDelay(rebuild,
+                    0, rebuildInterval, TimeUnit.MINUTES));
+        }
+        return existenceFilter;
+    }
+
+    private UserLoginListener getUserLoginListener(ComponentModel model) {
+        MultivaluedHashMap<String, String> config = model.getConfig();
+        return userLoginListeners.computeIfAbsent(config.getFirst(DB_CONNECTION_NAME_KEY), name -> {
+            UserLoginListener userLoginListener = new UserLoginListener(name, getJdbcUrl(model),
+                    config.getFirst(DB_USERNAME_KEY), config.getFirst(DB_PASSWORD_KEY));
+            Thread thread = new Thread(userLoginListener, PROVIDER_NAME_ID + "-login-listener-" + name);
+            thread.setDaemon(true);
+            thread.start();
+            return userLoginListener;
+        });
+    }
+
+    private LoginRecorder createLoginRecorder(ComponentModel model, String key, String realmId,
+                                              EntityManagerFactory entityManagerFactory) {
+        LoginRecorder loginRecorder = new LoginRecorder(entityManagerFactory, realmId,
+                getIntConfig(model, LOGIN_STATS_MAX_BUFFERED_USERS_KEY, 1000), loginFlushExecutor);
+        int flushInterval = getIntConfig(model, LOGIN_STATS_FLUSH_INTERVAL_SECONDS_KEY, 5);
+        loginRecorderFlushes.put(key, loginFlushExecutor.scheduleWithFixedDelay(loginRecorder::flush,
+                flushInterval, flushInterval, TimeUnit.SECONDS));
+        return loginRecorder;
+    }
+
+    private void rebuildExistenceFilter(ComponentModel model, String realmId, UserExistenceFilter existenceFilter) {
+        EntityManager entityManager = null;
+        try {
+            entityManager = getEntityManagerFactory(model).createEntityManager();
+            UserRepository userRepository = new UserRepository(entityManager, new Tracer(false, 0), realmId, existenceFilter);
+            // Read before the logins are streamed, a persisted filter is only reused at this version
+            long version = userRepository.getLoginVersion();
+            existenceFilter.rebuild(userRepository.size(), version, userRepository::forEachLogin);
+        } catch (RuntimeException e) {
+            // Keep the scheduled rebuilds running, the current filter stays in use
+            logger.warnf(e, "Could not rebuild existence filter for connection %s",
+                    model.getConfig().getFirst(DB_CONNECTION_NAME_KEY));
+        } finally {
+            if (entityManager != null) {
+                entityManager.close();
+            }
+        }
+    }
+
+    private void warmUpEntityManagerFactory(ComponentModel model) {
+        try {
+            getEntityManagerFactory(model);
+        } catch (RuntimeException e) {
+            // create() retries on demand, the warm-up must not take the node down
+            logger.warnf(e, "Could not build EntityManagerFactory for connection %s",
+                    model.getConfig().getFirst(DB_CONNECTION_NAME_KEY));
+        }
+    }
+
+    static boolean isProductionMode(ComponentModel model) {
+        return Boolean.parseBoolean(model.getConfig().getFirst(DB_PRODUCTION_MODE_KEY));
+    }
+
+    static String getRealmId(ComponentModel model) {
+        boolean realmScoped = Boolean.parseBoolean(model.getConfig().getFirst(DB_REALM_SCOPED_KEY));
+        return realmScoped ? model.getParentId() : User.UNSCOPED_REALM_ID;
+    }
+
+    static String getCacheKey(String dbConnectionName, String realmId) {
+        return dbConnectionName + "/" + realmId;
+    }
+
+    static boolean isFederatedRoleFallback(ComponentModel model) {
+        // Unset on components created before the option existed, which still need the fallback
+        String federatedRoleFallback = model.getConfig().getFirst(ROLES_FEDERATED_FALLBACK_KEY);
+        return federatedRoleFallback == null || federatedRoleFallback.isEmpty()
+                || Boolean.parseBoolean(federatedRoleFallback);
+    }
+
+    static boolean isExistenceFilterEnabled(ComponentModel model) {
+        return Boolean.parseBoolean(model.getConfig().getFirst(FILTER_ENABLED_KEY));
+    }
+
+    static boolean isTraceEnabled(ComponentModel model) {
+        return Boolean.parseBoolean(model.getConfig().getFirst(TRACE_ENABLED_KEY));
+    }
+
+    static long getSlowQueryThresholdMillis(ComponentModel model) {
+        String threshold = model.getConfig().getFirst(TRACE_SLOW_QUERY_THRESHOLD_MS_KEY);
+        return threshold == null || threshold.isEmpty() ? 0 : Long.parseLong(threshold);
+    }
+
+    static String getSchemaAction(ComponentModel model) {
+        String schemaAction = model.getConfig().getFirst(DB_SCHEMA_ACTION_KEY);
+        return schemaAction == null || schemaAction.isEmpty() ? SCHEMA_ACTION_UPDATE : schemaAction;
+    }
+
     @Override
     public void validateConfiguration(KeycloakSession session, RealmModel realm, ComponentModel config) throws ComponentValidationException {
         MultivaluedHashMap<String, String> configMap = config.getConfig();
@@ -160,9 +623,63 @@ public class ErajayaKeycloakStorageProviderFactory implements UserStorageProvide
         if (configMap.getFirst(DB_PASSWORD_KEY).isEmpty()) {
             throw new ComponentValidationException("Database password empty.");
         }
+        String roleGrantTtl = configMap.getFirst(CACHE_ROLE_GRANT_TTL_SECONDS_KEY);
+        if (roleGrantTtl != null && !roleGrantTtl.isEmpty() && !isNonNegativeInt(roleGrantTtl)) {
+            throw new ComponentValidationException("Invalid role grant cache ttl. (NaN or negative)");
+        }
+        String schemaAction = configMap.getFirst(DB_SCHEMA_ACTION_KEY);
+        if (schemaAction != null && !schemaAction.isEmpty() && !SCHEMA_ACTIONS.contains(schemaAction)) {
+            throw new ComponentValidationException("Invalid schema action. (Expected one of " + SCHEMA_ACTIONS + ")");
+        }
+        String roleGrantMaxEntries = configMap.getFirst(CACHE_ROLE_GRANT_MAX_ENTRIES_KEY);
+        if (roleGrantMaxEntries != null && !roleGrantMaxEntries.isEmpty() && !isNonNegativeInt(roleGrantMaxEntries)) {
+            throw new ComponentValidationException("Invalid role grant cache size. (NaN or negative)");
+        }
+        String throttleMaxFailures = configMap.getFirst(THROTTLE_MAX_FAILURES_KEY);
+        if (throttleMaxFailures != null && !throttleMaxFailures.isEmpty() && !isNonNegativeInt(throttleMaxFailures)) {
+            throw new ComponentValidationException("Invalid login throttle max failures. (NaN or negative)");
+        }
+        String throttleWindowSeconds = configMap.getFirst(THROTTLE_WINDOW_SECONDS_KEY);
+        if (throttleWindowSeconds != null && !throttleWindowSeconds.isEmpty()
+                && (!isNonNegativeInt(throttleWindowSeconds) || Integer.parseInt(throttleWindowSeconds) == 0)) {
+            throw new ComponentValidationException("Invalid login throttle window. (NaN or not positive)");
+        }
+        String falsePositiveRate = configMap.getFirst(FILTER_FALSE_POSITIVE_RATE_KEY);
+        if (falsePositiveRate != null && !falsePositiveRate.isEmpty() && (!isNumeric(falsePositiveRate)
+                || Double.parseDouble(falsePositiveRate) <= 0 || Double.parseDouble(falsePositiveRate) >= 1)) {
+            throw new ComponentValidationException("Invalid existence filter false positive rate. (Expected between 0 and 1)");
+        }
+        String rebuildInterval = configMap.getFirst(FILTER_REBUILD_INTERVAL_MINUTES_KEY);
+        if (rebuildInterval != null && !rebuildInterval.isEmpty()
+                && (!isNonNegativeInt(rebuildInterval) || Integer.parseInt(rebuildInterval) == 0)) {
+            throw new ComponentValidationException("Invalid existence filter rebuild interval. (NaN or not positive)");
+        }
+        String flushInterval = configMap.getFirst(LOGIN_STATS_FLUSH_INTERVAL_SECONDS_KEY);
+        if (flushInterval != null && !flushInterval.isEmpty()
+                && (!isNonNegativeInt(flushInterval) || Integer.parseInt(flushInterval) == 0)) {
+            throw new ComponentValidationException("Invalid login statistics flush interval. (NaN or not positive)");
+        }
+        String maxBufferedUsers = configMap.getFirst(LOGIN_STATS_MAX_BUFFERED_USERS_KEY);
+        if (maxBufferedUsers != null && !maxBufferedUsers.isEmpty()
+                && (!isNonNegativeInt(maxBufferedUsers) || Integer.parseInt(maxBufferedUsers) == 0)) {
+            throw new ComponentValidationException("Invalid login statistics buffer size. (NaN or not positive)");
+        }
+        String slowQueryThreshold = configMap.getFirst(TRACE_SLOW_QUERY_THRESHOLD_MS_KEY);
+        if (slowQueryThreshold != null && !slowQueryThreshold.isEmpty() && !isNonNegativeInt(slowQueryThreshold)) {
+            throw new ComponentValidationException("Invalid slow query threshold. (NaN or negative)");
+        }
+    }
+
+    static int getRoleGrantMaxEntries(ComponentModel model) {
+        return getIntConfig(model, CACHE_ROLE_GRANT_MAX_ENTRIES_KEY, 10000);
     }
 
-    private PersistenceUnitInfo getPersistenceUnitInfo() {
+    static int getIntConfig(ComponentModel model, String key, int defaultValue) {
+        String value = model.getConfig().getFirst(key);
+        return value == null || value.isEmpty() ? defaultValue : Integer.parseInt(value);
+    }
+
+    PersistenceUnitInfo getPersistenceUnitInfo(boolean productionMode) {
         return new PersistenceUnitInfo() {
             @Override
             public String getPersistenceUnitName() {
@@ -196,6 +713,10 @@ public class ErajayaKeycloakStorageProviderFactory implements UserStorageProvide
 
             @Override
             public List<URL> getJarFileUrls() {
+                if (productionMode) {
+                    // Entities are listed in getManagedClassNames, nothing to scan
+                    return Collections.emptyList();
+                }
                 try {
                     return Collections.list(this.getClass()
                             .getClassLoader()
@@ -214,12 +735,13 @@ public class ErajayaKeycloakStorageProviderFactory implements UserStorageProvide
             public List<String> getManagedClassNames() {
                 List<String> managedClasses = new LinkedList<>();
                 managedClasses.add(User.class.getName());
+                managedClasses.add(UserRole.class.getName());
                 return managedClasses;
             }
 
             @Override
             public boolean excludeUnlistedClasses() {
-                return false;
+                return productionMode;
             }
 
             @Override
@@ -258,6 +780,14 @@ public class ErajayaKeycloakStorageProviderFactory implements UserStorageProvide
         };
     }
 
+    static boolean isNonNegativeInt(String strNum) {
+        try {
+            return Integer.parseInt(strNum) >= 0;
+        } catch (NumberFormatException nfe) {
+            return false;
+        }
+    }
+
     static boolean isNumeric(String strNum) {
         if (strNum == null) {
             return false;
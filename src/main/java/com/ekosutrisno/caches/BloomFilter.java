@@ -0,0 +1,135 @@
+package com.ekosutrisno.caches;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bloom filter over strings with lock-free concurrent inserts. The version is chosen by the caller
+ * and stored with the filter, to tell whether a persisted filter is still current.
+ */
+class BloomFilter {
+    private static final long MAGIC = 0x424C4F4F4D763032L;
+    private static final int HEADER_BYTES = Long.BYTES + Long.BYTES + Integer.BYTES + Long.BYTES;
+
+    private final AtomicLongArray words;
+    private final long numBits;
+    private final int numHashes;
+    private final long version;
+    private final LongAdder insertions = new LongAdder();
+
+    private BloomFilter(AtomicLongArray words, int numHashes, long version) {
+        this.words = words;
+        this.numBits = (long) words.length() * Long.SIZE;
+        this.numHashes = numHashes;
+        this.version = version;
+    }
+
+    static BloomFilter create(long expectedInsertions, double falsePositiveRate, long version) {
+        long n = Math.max(1, expectedInsertions);
+        long bits = (long) (-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        int numHashes = Math.max(1, (int) Math.round((double) bits / n * Math.log(2)));
+        int numWords = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1, (bits + Long.SIZE - 1) / Long.SIZE));
+        return new BloomFilter(new AtomicLongArray(numWords), numHashes, version);
+    }
+
+    void add(String key) {
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < numHashes; i++) {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+            int index = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long word;
+            while (((word = words.get(index)) & mask) == 0) {
+                if (words.compareAndSet(index, word, word | mask)) {
+                    break;
+                }
+            }
+        }
+        insertions.increment();
+    }
+
+    boolean mightContain(String key) {
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < numHashes; i++) {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    long getInsertions() {
+        return insertions.sum();
+    }
+
+    long getMemoryBytes() {
+        return numBits / Byte.SIZE;
+    }
+
+    /* False positive rate expected for the number of keys inserted so far */
+    double getExpectedFalsePositiveRate() {
+        return Math.pow(1 - Math.exp(-numHashes * (double) getInsertions() / numBits), numHashes);
+    }
+
+    void writeTo(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_BYTES + (long) words.length() * Long.BYTES);
+            buffer.putLong(MAGIC);
+            buffer.putLong(version);
+            buffer.putInt(numHashes);
+            buffer.putLong(getInsertions());
+            for (int i = 0; i < words.length(); i++) {
+                buffer.putLong(words.get(i));
+            }
+            buffer.force();
+        }
+    }
+
+    static BloomFilter readFrom(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (channel.size() < HEADER_BYTES || buffer.getLong() != MAGIC) {
+                throw new IOException("Not a bloom filter file: " + file);
+            }
+            long version = buffer.getLong();
+            int numHashes = buffer.getInt();
+            long insertions = buffer.getLong();
+            AtomicLongArray words = new AtomicLongArray(buffer.remaining() / Long.BYTES);
+            for (int i = 0; i < words.length(); i++) {
+                words.set(i, buffer.getLong());
+            }
+            BloomFilter filter = new BloomFilter(words, numHashes, version);
+            filter.insertions.add(insertions);
+            return filter;
+        }
+    }
+
+    /* 64 bit FNV-1a with a final mix, split into the two hashes of the double hashing scheme */
+    private static long hash(String key) {
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001B3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
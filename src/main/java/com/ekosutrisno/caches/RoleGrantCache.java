@@ -0,0 +1,82 @@
+package com.ekosutrisno.caches;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Node local, size bounded LRU cache of the role ids granted to a user.
+ * Entries are dropped on every write done through this node and expire after the ttl,
+ * which bounds how long a grant revoked on another node is still seen here.
+ */
+public class RoleGrantCache {
+    private final Map<UUID, Entry> grants;
+    private final long ttlNanos;
+    private final LongSupplier nanoClock;
+    private long generation;
+
+    public RoleGrantCache(int maxEntries, long ttlSeconds) {
+        this(maxEntries, ttlSeconds, System::nanoTime);
+    }
+
+    RoleGrantCache(int maxEntries, long ttlSeconds, LongSupplier nanoClock) {
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.nanoClock = nanoClock;
+        this.grants = new LinkedHashMap<UUID, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UUID, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public Set<String> getRoleIds(UUID userId, Supplier<Set<String>> loader) {
+        long loadGeneration;
+        synchronized (grants) {
+            Entry entry = grants.get(userId);
+            if (entry != null && nanoClock.getAsLong() - entry.loadedAtNanos < ttlNanos) {
+                return entry.roleIds;
+            }
+            loadGeneration = generation;
+        }
+        // Load outside the lock, a concurrent miss only costs one extra query
+        long loadedAtNanos = nanoClock.getAsLong();
+        Set<String> roleIds = Collections.unmodifiableSet(loader.get());
+        synchronized (grants) {
+            // Do not cache a result that may predate a write made while loading
+            if (loadGeneration == generation) {
+                grants.put(userId, new Entry(roleIds, loadedAtNanos));
+            }
+        }
+        return roleIds;
+    }
+
+    public void invalidate(UUID userId) {
+        synchronized (grants) {
+            generation++;
+            grants.remove(userId);
+        }
+    }
+
+    public void clear() {
+        synchronized (grants) {
+            generation++;
+            grants.clear();
+        }
+    }
+
+    private static final class Entry {
+        final Set<String> roleIds;
+        final long loadedAtNanos;
+
+        Entry(Set<String> roleIds, long loadedAtNanos) {
+            this.roleIds = roleIds;
+            this.loadedAtNanos = loadedAtNanos;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.ekosutrisno.caches;
+
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Node local Bloom filter over the usernames and emails of tbl_user, used to answer lookups of
+ * logins that do not exist without a query. Logins written by other nodes or applications arrive
+ * through {@link #add} while a listener is connected, so the filter only answers while listening and
+ * after a build that started while listening. Until then every login passes.
+ * Deleted users are only dropped by the next rebuild.
+ */
+public class UserExistenceFilter {
+    /* Version of a filter whose completeness cannot be told from the version */
+    public static final long UNKNOWN_VERSION = -1;
+    private static final Logger logger = Logger.getLogger(UserExistenceFilter.class);
+    /* Room for users created between two rebuilds */
+    private static final double GROWTH_FACTOR = 1.25;
+    private static final int MIN_EXPECTED_INSERTIONS = 1024;
+
+    private final String name;
+    private final double falsePositiveRate;
+    private final Path persistFile;
+    private volatile BloomFilter active;
+    private volatile BloomFilter building;
+    /* Incremented whenever listening starts or stops, a filter is trusted for one generation */
+    private final AtomicLong generation = new AtomicLong();
+    private volatile boolean listening;
+    private volatile long trustedGeneration = -1;
+    private final LongAdder shortCircuited = new LongAdder();
+    private final LongAdder falsePositives = new LongAdder();
+
+    public UserExistenceFilter(String name, double falsePositiveRate, Path persistFile) {
+        this.name = name;
+        this.falsePositiveRate = falsePositiveRate;
+        this.persistFile = persistFile;
+    }
+
+    public boolean mightContain(String login) {
+        BloomFilter filter = active;
+        if (filter == null || login == null || !isTrusted() || filter.mightContain(key(login))) {
+            return true;
+        }
+        shortCircuited.increment();
+        return false;
+    }
+
+    /* Lookup passed the filter but found no user */
+    public void recordFalsePositive() {
+        if (active != null && isTrusted()) {
+            falsePositives.increment();
+        }
+    }
+
+    public void add(String login) {
+        if (login == null) {
+            return;
+        }
+        String key = key(login);
+        // Read building before active, rebuild() publishes them in the opposite order
+        BloomFilter next = building;
+        if (next != null) {
+            next.add(key);
+        }
+        BloomFilter filter = active;
+        if (filter != null) {
+            filter.add(key);
+        }
+    }
+
+    /**
+     * Called once logins written to tbl_user from now on are passed to {@link #add}. {@code version} is the
+     * login change count read after that point. Returns whether the current filter was built at that
+     * version and is used right away, otherwise every login passes until the next rebuild completes.
+     */
+    public synchronized boolean startListening(long version) {
+        long current = generation.incrementAndGet();
+        listening = true;
+        BloomFilter filter = active;
+        if (filter != null && version != UNKNOWN_VERSION && filter.getVersion() == version) {
+            trustedGeneration = current;
+            return true;
+        }
+        return false;
+    }
+
+    /* Logins written elsewhere may be missed from now on, let every login pass */
+    public synchronized void stopListening() {
+        listening = false;
+        generation.incrementAndGet();
+    }
+
+    public boolean isTrusted() {
+        return listening && trustedGeneration == generation.get();
+    }
+
+    /**
+     * Loads the filter persisted by the previous run. It is only used if {@link #startListening} finds
+     * that no login was written since it was built, otherwise it waits for the first rebuild.
+     */
+    public void load() {
+        if (persistFile == null || active != null || !Files.isReadable(persistFile)) {
+            return;
+        }
+        try {
+            active = BloomFilter.readFrom(persistFile);
+            logger.infof("Loaded existence filter %s from %s", name, persistFile);
+        } catch (IOException e) {
+            logger.warnf(e, "Could not load existence filter %s from %s", name, persistFile);
+        }
+    }
+
+    /**
+     * Replaces the filter with one built from {@code source}, which streams every login of the table.
+     * {@code version} is the login change count read before streaming. Logins added while the source
+     * is streamed go into both filters. The new filter is only trusted if listening did not start or
+     * stop while it was built.
+     */
+    public void rebuild(long userCount, long version, Consumer<Consumer<String>> source) {
+        long start = System.nanoTime();
+        long buildGeneration = generation.get();
+        boolean listeningAtStart = listening;
+        long expectedInsertions = Math.max(MIN_EXPECTED_INSERTIONS, (long) (2 * userCount * GROWTH_FACTOR));
+        BloomFilter next = BloomFilter.create(expectedInsertions, falsePositiveRate, version);
+        // Published before the source is read, so a login committed before this point is streamed
+        // and one added after it reaches the new filter through add()
+        building = next;
+        try {
+            source.accept(login -> {
+                if (login != null) {
+                    next.add(key(login));
+                }
+            });
+            active = next;
+            synchronized (this) {
+                if (listeningAtStart && generation.get() == buildGeneration) {
+                    trustedGeneration = buildGeneration;
+                }
+            }
+        } finally {
+            building = null;
+        }
+        report(next, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        persist(next);
+    }
+
+    private void report(BloomFilter filter, long buildMillis) {
+        long negatives = shortCircuited.sumThenReset();
+        long passedButMissing = falsePositives.sumThenReset();
+        double observedRate = negatives + passedButMissing == 0
+                ? 0 : (double) passedButMissing / (negatives + passedButMissing);
+        logger.infof("Built existence filter %s in %d ms: %d keys, %d KiB, expected false positive rate %.4f, " +
+                        "since last build %d lookups short-circuited, observed false positive rate %.4f",
+                name, buildMillis, filter.getInsertions(), filter.getMemoryBytes() / 1024,
+                filter.getExpectedFalsePositiveRate(), negatives, observedRate);
+    }
+
+    private void persist(BloomFilter filter) {
+        if (persistFile == null) {
+            return;
+        }
+        try {
+            Path tmp = persistFile.resolveSibling(persistFile.getFileName() + ".tmp");
+            filter.writeTo(tmp);
+            Files.move(tmp, persistFile, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warnf(e, "Could not persist existence filter %s to %s", name, persistFile);
+        }
+    }
+
+    private static String key(String login) {
+        return login.toLowerCase(Locale.ROOT);
+    }
+}
@@ -8,26 +8,41 @@ import java.util.UUID;
  * Selasa, 28/12/2021 11.40
  */
 @NamedQueries({
-        @NamedQuery(name="getUserByUsername", query="select u from User u where u.username = :username"),
-        @NamedQuery(name="getUserByEmail", query="select u from User u where u.email = :email"),
-        @NamedQuery(name="getUserCount", query="select count(u) from User u"),
-        @NamedQuery(name="getAllUsers", query="select u from User u"),
-        @NamedQuery(name="searchForUser", query="select u from User u where " +
+        @NamedQuery(name="getUserById", query="select u from User u where u.realmId = :realmId and u.id = :id"),
+        @NamedQuery(name="getUserByUsername", query="select u from User u where u.realmId = :realmId and u.username = :username"),
+        @NamedQuery(name="getUserByEmail", query="select u from User u where u.realmId = :realmId and u.email = :email"),
+        @NamedQuery(name="getUserCount", query="select count(u) from User u where u.realmId = :realmId"),
+        @NamedQuery(name="getAllUsers", query="select u from User u where u.realmId = :realmId"),
+        @NamedQuery(name="getAllLogins", query="select u.username, u.email from User u where u.realmId = :realmId"),
+        @NamedQuery(name="searchForUser", query="select u from User u where u.realmId = :realmId and " +
                 "( lower(u.username) like :search or u.email like :search ) order by u.username"),
 })
 @Entity
-@Table(name = "tbl_user")
+@Table(name = "tbl_user",
+        uniqueConstraints = {
+                @UniqueConstraint(columnNames = {"realm_id", "username"}),
+                @UniqueConstraint(columnNames = {"realm_id", "email"})
+        })
 public class User {
+    /* Realm id of users stored without realm scoping, all such users share one partition */
+    public static final String UNSCOPED_REALM_ID = "";
+
     @Id
     @GeneratedValue
     @Column(length = 128/8)
     private UUID id;
-    @Column(unique = true)
+    @Column(name = "realm_id", nullable = false, length = 36, columnDefinition = "varchar(36) not null default ''")
+    private String realmId = UNSCOPED_REALM_ID;
     private String username;
-    @Column(unique = true)
     private String email;
     private String password;
     private String phone;
+    /* Written only by LoginRecorder, so merging a stale entity cannot overwrite them. Epoch millis */
+    @Column(name = "last_login_at", insertable = false, updatable = false)
+    private Long lastLoginAt;
+    @Column(name = "login_count", nullable = false, insertable = false, updatable = false,
+            columnDefinition = "bigint not null default 0")
+    private long loginCount;
 
     public User() {
     }
@@ -40,6 +55,14 @@ public class User {
         this.id = id;
     }
 
+    public String getRealmId() {
+        return realmId;
+    }
+
+    public void setRealmId(String realmId) {
+        this.realmId = realmId;
+    }
+
     public String getUsername() {
         return username;
     }
@@ -71,4 +94,20 @@ public class User {
     public void setPhone(String phone) {
         this.phone = phone;
     }
+
+    public Long getLastLoginAt() {
+        return lastLoginAt;
+    }
+
+    public void setLastLoginAt(Long lastLoginAt) {
+        this.lastLoginAt = lastLoginAt;
+    }
+
+    public long getLoginCount() {
+        return loginCount;
+    }
+
+    public void setLoginCount(long loginCount) {
+        this.loginCount = loginCount;
+    }
 }
\ No newline at end of file
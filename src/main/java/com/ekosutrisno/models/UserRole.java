@@ -0,0 +1,59 @@
+package com.ekosutrisno.models;
+
+import javax.persistence.*;
+import java.util.UUID;
+
+/**
+ * Role assignment of a {@link User}, referencing the Keycloak role id.
+ */
+@NamedQueries({
+        @NamedQuery(name="getRoleIdsByUserId", query="select r.roleId from UserRole r where r.userId = :userId"),
+        @NamedQuery(name="deleteUserRole", query="delete from UserRole r where r.userId = :userId and r.roleId = :roleId"),
+        @NamedQuery(name="deleteUserRolesByUserId", query="delete from UserRole r where r.userId = :userId"),
+})
+@Entity
+@Table(name = "tbl_user_role",
+        uniqueConstraints = @UniqueConstraint(columnNames = {"user_id", "role_id"}),
+        indexes = @Index(name = "idx_user_role_user_id", columnList = "user_id"))
+public class UserRole {
+    @Id
+    @GeneratedValue
+    @Column(length = 128/8)
+    private UUID id;
+    @Column(name = "user_id", nullable = false)
+    private UUID userId;
+    @Column(name = "role_id", nullable = false)
+    private String roleId;
+
+    public UserRole() {
+    }
+
+    public UserRole(UUID userId, String roleId) {
+        this.userId = userId;
+        this.roleId = roleId;
+    }
+
+    public UUID getId() {
+        return id;
+    }
+
+    public void setId(UUID id) {
+        this.id = id;
+    }
+
+    public UUID getUserId() {
+        return userId;
+    }
+
+    public void setUserId(UUID userId) {
+        this.userId = userId;
+    }
+
+    public String getRoleId() {
+        return roleId;
+    }
+
+    public void setRoleId(String roleId) {
+        this.roleId = roleId;
+    }
+}
@@ -0,0 +1,128 @@
+package com.ekosutrisno.repositories;
+
+import org.hibernate.Session;
+import org.jboss.logging.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Write-behind recorder of successful logins. Logins are coalesced per user in memory and written
+ * to last_login_at and login_count of tbl_user as one JDBC batch when the buffer reaches its size
+ * limit, when the flush interval elapses or when the factory closes.
+ * At most one flush interval, or maxBufferedUsers users, of logins are lost on a crash.
+ */
+public class LoginRecorder {
+    private static final Logger logger = Logger.getLogger(LoginRecorder.class);
+    private static final String UPDATE_SQL = "update tbl_user set " +
+            "last_login_at = greatest(coalesce(last_login_at, 0), ?), login_count = login_count + ? " +
+            "where id = ? and realm_id = ?";
+
+    private final EntityManagerFactory entityManagerFactory;
+    private final String realmId;
+    private final int maxBufferedUsers;
+    private final Executor flushExecutor;
+    private final Map<UUID, PendingLogins> buffer = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    public LoginRecorder(EntityManagerFactory entityManagerFactory, String realmId, int maxBufferedUsers,
+                         Executor flushExecutor) {
+        this.entityManagerFactory = entityManagerFactory;
+        this.realmId = realmId;
+        this.maxBufferedUsers = maxBufferedUsers;
+        this.flushExecutor = flushExecutor;
+    }
+
+    public void recordLogin(UUID userId) {
+        buffer.merge(userId, new PendingLogins(System.currentTimeMillis(), 1), PendingLogins::merge);
+        if (buffer.size() >= maxBufferedUsers && flushScheduled.compareAndSet(false, true)) {
+            try {
+                flushExecutor.execute(() -> {
+                    flushScheduled.set(false);
+                    flush();
+                });
+            } catch (RejectedExecutionException e) {
+                // Shutting down, the factory flushes what is left on close
+                flushScheduled.set(false);
+            }
+        }
+    }
+
+    public synchronized void flush() {
+        Map<UUID, PendingLogins> drained = drain();
+        if (drained.isEmpty()) {
+            return;
+        }
+        List<UUID> userIds = new ArrayList<>(drained.keySet());
+        List<PendingLogins> logins = new ArrayList<>(drained.values());
+
+        EntityManager entityManager = null;
+        EntityTransaction transaction = null;
+        try {
+            entityManager = entityManagerFactory.createEntityManager();
+            transaction = entityManager.getTransaction();
+            transaction.begin();
+            entityManager.unwrap(Session.class).doWork(connection -> {
+                try (PreparedStatement statement = connection.prepareStatement(UPDATE_SQL)) {
+                    for (int i = 0; i < userIds.size(); i++) {
+                        statement.setLong(1, logins.get(i).lastLoginAt);
+                        statement.setLong(2, logins.get(i).count);
+                        statement.setObject(3, userIds.get(i));
+                        statement.setString(4, realmId);
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                }
+            });
+            transaction.commit();
+        } catch (RuntimeException e) {
+            if (transaction != null && transaction.isActive()) {
+                transaction.rollback();
+            }
+            // Put the logins back so the next flush retries them
+            drained.forEach((userId, pending) -> buffer.merge(userId, pending, PendingLogins::merge));
+            logger.warnf(e, "Could not flush %d buffered logins", userIds.size());
+        } finally {
+            if (entityManager != null) {
+                entityManager.close();
+            }
+        }
+    }
+
+    /* Logins recorded while draining start a new entry and go with the next flush */
+    Map<UUID, PendingLogins> drain() {
+        Map<UUID, PendingLogins> drained = new HashMap<>();
+        for (UUID userId : buffer.keySet()) {
+            PendingLogins pending = buffer.remove(userId);
+            if (pending != null) {
+                drained.put(userId, pending);
+            }
+        }
+        return drained;
+    }
+
+    static final class PendingLogins {
+        final long lastLoginAt;
+        final long count;
+
+        PendingLogins(long lastLoginAt, long count) {
+            this.lastLoginAt = lastLoginAt;
+            this.count = count;
+        }
+
+        static PendingLogins merge(PendingLogins a, PendingLogins b) {
+            return new PendingLogins(Math.max(a.lastLoginAt, b.lastLoginAt), a.count + b.count);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.ekosutrisno.repositories;
+
+import com.ekosutrisno.caches.UserExistenceFilter;
+import org.jboss.logging.Logger;
+import org.keycloak.util.JsonSerialization;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Passes the usernames and emails written to tbl_user by any node or application to the existence
+ * filters of one connection, through the notifications of the trigger in db/tbl_user_login_notify.sql.
+ * Filters are told when listening starts and stops, and only answer lookups in between.
+ */
+public class UserLoginListener implements Runnable {
+    private static final Logger logger = Logger.getLogger(UserLoginListener.class);
+    static final String CHANNEL = "tbl_user_login";
+    static final String TRIGGER_QUERY = "select 1 from pg_trigger " +
+            "where tgrelid = to_regclass('tbl_user') and tgname = 'tbl_user_login_notify'";
+    /* Count of username and email writes, increased by the trigger */
+    static final String VERSION_QUERY = "select case when is_called then last_value else 0 end from tbl_user_login_seq";
+    private static final int POLL_TIMEOUT_MILLIS = 10_000;
+    private static final long RETRY_MILLIS = 30_000;
+
+    private final String name;
+    private final String url;
+    private final String username;
+    private final String password;
+    private final Map<String, Registration> registrations = new ConcurrentHashMap<>();
+    private volatile boolean listening;
+    private volatile boolean closed;
+    private volatile Connection connection;
+
+    public UserLoginListener(String name, String url, String username, String password) {
+        this.name = name;
+        this.url = url;
+        this.username = username;
+        this.password = password;
+    }
+
+    /**
+     * Adds the filter of a realm. {@code rebuild} is run when listening starts and the filter
+     * is not current, so it does not let every login pass until the next scheduled rebuild.
+     */
+    public void register(String realmId, UserExistenceFilter filter, Runnable rebuild) {
+        registrations.put(realmId, new Registration(filter, rebuild));
+        if (listening) {
+            // Logins written before the filter was registered may be missing, trusted after its first rebuild
+            filter.startListening(UserExistenceFilter.UNKNOWN_VERSION);
+        }
+    }
+
+    public void unregister(String realmId) {
+        Registration registration = registrations.remove(realmId);
+        if (registration != null) {
+            registration.filter.stopListening();
+        }
+    }
+
+    public boolean isEmpty() {
+        return registrations.isEmpty();
+    }
+
+    @Override
+    public void run() {
+        while (!closed) {
+            try (Connection listenConnection = DriverManager.getConnection(url, username, password)) {
+                connection = listenConnection;
+                listen(listenConnection);
+            } catch (SQLException | RuntimeException e) {
+                if (!closed) {
+                    logger.warnf(e, "Lost login notifications for existence filters of connection %s", name);
+                }
+            } finally {
+                stopListening();
+                connection = null;
+            }
+            if (!closed) {
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    public void close() {
+        closed = true;
+        Connection listenConnection = connection;
+        if (listenConnection != null) {
+            try {
+                // Ends a getNotifications() wait
+                listenConnection.close();
+            } catch (SQLException e) {
+                logger.debugf(e, "Could not close login notification connection %s", name);
+            }
+        }
+    }
+
+    private void listen(Connection listenConnection) throws SQLException {
+        try (Statement statement = listenConnection.createStatement()) {
+            try (ResultSet trigger = statement.executeQuery(TRIGGER_QUERY)) {
+                if (!trigger.next()) {
+                    logger.warnf("Existence filters of connection %s are not used until db/tbl_user_login_notify.sql " +
+                            "has been run, logins written by other nodes would not reach them", name);
+                    return;
+                }
+            }
+            statement.execute("listen " + CHANNEL);
+            long version;
+            try (ResultSet result = statement.executeQuery(VERSION_QUERY)) {
+                result.next();
+                version = result.getLong(1);
+            }
+            listening = true;
+            registrations.values().forEach(registration -> {
+                if (!registration.filter.startListening(version)) {
+                    registration.rebuild.run();
+                }
+            });
+            logger.infof("Listening for logins written to tbl_user of connection %s", name);
+        }
+
+        PGConnection pgConnection = listenConnection.unwrap(PGConnection.class);
+        while (!closed) {
+            PGNotification[] notifications = pgConnection.getNotifications(POLL_TIMEOUT_MILLIS);
+            if (notifications != null) {
+                for (PGNotification notification : notifications) {
+                    dispatch(notification.getParameter());
+                }
+            }
+        }
+    }
+
+    void dispatch(String payload) {
+        Map<?, ?> row;
+        try {
+            row = JsonSerialization.readValue(payload, Map.class);
+        } catch (IOException e) {
+            logger.warnf(e, "Ignoring malformed login notification %s", payload);
+            return;
+        }
+        Registration registration = registrations.get(String.valueOf(row.get("realm_id")));
+        if (registration != null) {
+            registration.filter.add((String) row.get("username"));
+            registration.filter.add((String) row.get("email"));
+        }
+    }
+
+    private void stopListening() {
+        listening = false;
+        registrations.values().forEach(registration -> registration.filter.stopListening());
+    }
+
+    private static final class Registration {
+        final UserExistenceFilter filter;
+        final Runnable rebuild;
+
+        Registration(UserExistenceFilter filter, Runnable rebuild) {
+            this.filter = filter;
+            this.rebuild = rebuild;
+        }
+    }
+}
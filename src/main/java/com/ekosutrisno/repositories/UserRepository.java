@@ -1,6 +1,9 @@
 package com.ekosutrisno.repositories;
 
+import com.ekosutrisno.caches.UserExistenceFilter;
 import com.ekosutrisno.models.User;
+import com.ekosutrisno.tracing.Span;
+import com.ekosutrisno.tracing.Tracer;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityTransaction;
@@ -8,6 +11,8 @@ import javax.persistence.TypedQuery;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 /**
  * @author Eko Sutrisno
@@ -15,9 +20,15 @@ import java.util.UUID;
  */
 public class UserRepository {
     private final EntityManager entityManager;
+    private final Tracer tracer;
+    private final String realmId;
+    private final UserExistenceFilter existenceFilter;
 
-    public UserRepository(EntityManager entityManager) {
+    public UserRepository(EntityManager entityManager, Tracer tracer, String realmId, UserExistenceFilter existenceFilter) {
         this.entityManager = entityManager;
+        this.tracer = tracer;
+        this.realmId = realmId;
+        this.existenceFilter = existenceFilter;
     }
 
     public List<User> findAll() {
@@ -29,15 +40,39 @@ public class UserRepository {
     }
 
     public Optional<User> getUserByUsername(String username) {
-        TypedQuery<User> query = entityManager.createNamedQuery("getUserByUsername", User.class);
-        query.setParameter("username", username);
-        return query.getResultList().stream().findFirst();
+        // Definitely not in the table, skip the query
+        if (!existenceFilter.mightContain(username)) {
+            return Optional.empty();
+        }
+        try (Span span = tracer.startSpan("UserRepository.getUserByUsername")) {
+            TypedQuery<User> query = entityManager.createNamedQuery("getUserByUsername", User.class);
+            query.setParameter("realmId", realmId);
+            query.setParameter("username", username);
+            List<User> users = query.getResultList();
+            span.setRowCount(users.size());
+            if (users.isEmpty()) {
+                existenceFilter.recordFalsePositive();
+            }
+            return users.stream().findFirst();
+        }
     }
 
     public Optional<User> getUserByEmail(String email) {
-        TypedQuery<User> query = entityManager.createNamedQuery("getUserByEmail", User.class);
-        query.setParameter("email", email);
-        return query.getResultList().stream().findFirst();
+        // Definitely not in the table, skip the query
+        if (!existenceFilter.mightContain(email)) {
+            return Optional.empty();
+        }
+        try (Span span = tracer.startSpan("UserRepository.getUserByEmail")) {
+            TypedQuery<User> query = entityManager.createNamedQuery("getUserByEmail", User.class);
+            query.setParameter("realmId", realmId);
+            query.setParameter("email", email);
+            List<User> users = query.getResultList();
+            span.setRowCount(users.size());
+            if (users.isEmpty()) {
+                existenceFilter.recordFalsePositive();
+            }
+            return users.stream().findFirst();
+        }
     }
 
     public List<User> searchForUserByUsernameOrEmail(String searchString) {
@@ -49,25 +84,42 @@ public class UserRepository {
     }
 
     public User getUserById(String id) {
-        return entityManager.find(User.class, UUID.fromString(id));
+        try (Span span = tracer.startSpan("UserRepository.getUserById")) {
+            TypedQuery<User> query = entityManager.createNamedQuery("getUserById", User.class);
+            query.setParameter("realmId", realmId);
+            query.setParameter("id", UUID.fromString(id));
+            List<User> users = query.getResultList();
+            span.setRowCount(users.size());
+            return users.stream().findFirst().orElse(null);
+        }
     }
 
     public User createUser(User user) {
-        EntityTransaction transaction = entityManager.getTransaction();
-
-        transaction.begin();
-        entityManager.persist(user);
-        transaction.commit();
-
-        return user;
+        try (Span span = tracer.startSpan("UserRepository.createUser")) {
+            user.setRealmId(realmId);
+            EntityTransaction transaction = entityManager.getTransaction();
+
+            transaction.begin();
+            entityManager.persist(user);
+            transaction.commit();
+
+            existenceFilter.add(user.getUsername());
+            existenceFilter.add(user.getEmail());
+            span.setRowCount(1);
+            return user;
+        }
     }
 
     public void deleteUser(User user) {
-        EntityTransaction transaction = entityManager.getTransaction();
+        try (Span span = tracer.startSpan("UserRepository.deleteUser")) {
+            EntityTransaction transaction = entityManager.getTransaction();
+
+            transaction.begin();
+            entityManager.remove(user);
+            transaction.commit();
 
-        transaction.begin();
-        entityManager.remove(user);
-        transaction.commit();
+            span.setRowCount(1);
+        }
     }
 
     public void close() {
@@ -75,45 +127,109 @@ public class UserRepository {
     }
 
     public User updateUser(User userEntity) {
-        EntityTransaction transaction = entityManager.getTransaction();
+        // merge() would insert a transient user, possibly into another realm
+        if (userEntity.getId() == null) {
+            throw new IllegalArgumentException("Cannot update a user that was never stored");
+        }
+        if (!realmId.equals(userEntity.getRealmId())) {
+            throw new IllegalArgumentException("Cannot update a user of another realm");
+        }
+        try (Span span = tracer.startSpan("UserRepository.updateUser")) {
+            EntityTransaction transaction = entityManager.getTransaction();
+
+            transaction.begin();
+            entityManager.merge(userEntity);
+            transaction.commit();
+
+            existenceFilter.add(userEntity.getUsername());
+            existenceFilter.add(userEntity.getEmail());
+            span.setRowCount(1);
+            return userEntity;
+        }
+    }
 
-        transaction.begin();
-        entityManager.merge(userEntity);
-        transaction.commit();
+    /* Count of username and email writes kept by db/tbl_user_login_notify.sql */
+    public long getLoginVersion() {
+        try (Span span = tracer.startSpan("UserRepository.getLoginVersion")) {
+            Number version = (Number) entityManager.createNativeQuery(UserLoginListener.VERSION_QUERY)
+                    .getSingleResult();
+            span.setRowCount(1);
+            return version.longValue();
+        }
+    }
 
-        return userEntity;
+    /* Streams every username and email of the realm, for building the existence filter */
+    public void forEachLogin(Consumer<String> consumer) {
+        try (Span span = tracer.startSpan("UserRepository.forEachLogin")) {
+            EntityTransaction transaction = entityManager.getTransaction();
+
+            // PostgreSQL only honours the fetch size inside a transaction
+            transaction.begin();
+            try (Stream<Object[]> rows = entityManager.createNamedQuery("getAllLogins", Object[].class)
+                    .setParameter("realmId", realmId)
+                    .setHint("org.hibernate.fetchSize", 1000)
+                    .setHint("org.hibernate.readOnly", true)
+                    .getResultStream()) {
+                rows.forEach(row -> {
+                    consumer.accept((String) row[0]);
+                    consumer.accept((String) row[1]);
+                });
+                transaction.commit();
+            } finally {
+                if (transaction.isActive()) {
+                    transaction.rollback();
+                }
+            }
+        }
     }
 
     public int size() {
-        return entityManager.createNamedQuery("getUserCount", Integer.class).getSingleResult();
+        try (Span span = tracer.startSpan("UserRepository.size")) {
+            int size = entityManager.createNamedQuery("getUserCount", Long.class)
+                    .setParameter("realmId", realmId)
+                    .getSingleResult()
+                    .intValue();
+            span.setRowCount(1);
+            return size;
+        }
     }
 
 
     /* This findAll For Local Private Implementation Class */
     private List<User> findAll(Integer start, Integer max) {
-        TypedQuery<User> query = entityManager.createNamedQuery("searchForUser", User.class);
+        try (Span span = tracer.startSpan("UserRepository.findAll")) {
+            TypedQuery<User> query = entityManager.createNamedQuery("searchForUser", User.class);
 
-        if (start != null)
-            query.setFirstResult(start);
+            if (start != null)
+                query.setFirstResult(start);
 
-        if (max != null)
-            query.setMaxResults(max);
+            if (max != null)
+                query.setMaxResults(max);
 
-        query.setParameter("search", "%");
-        return query.getResultList();
+            query.setParameter("realmId", realmId);
+            query.setParameter("search", "%");
+            List<User> users = query.getResultList();
+            span.setRowCount(users.size());
+            return users;
+        }
     }
 
     /* This searchForUserByUsernameOrEmail For Local Private Implementation Class */
     private List<User> searchForUserByUsernameOrEmail(String searchString, Integer start, Integer max) {
-        TypedQuery<User> query = entityManager.createNamedQuery("searchForUser", User.class);
-        query.setParameter("search", "%" + searchString + "%");
+        try (Span span = tracer.startSpan("UserRepository.searchForUserByUsernameOrEmail")) {
+            TypedQuery<User> query = entityManager.createNamedQuery("searchForUser", User.class);
+            query.setParameter("realmId", realmId);
+            query.setParameter("search", "%" + searchString + "%");
 
-        if (start != null)
-            query.setFirstResult(start);
+            if (start != null)
+                query.setFirstResult(start);
 
-        if (max != null)
-            query.setMaxResults(max);
+            if (max != null)
+                query.setMaxResults(max);
 
-        return query.getResultList();
+            List<User> users = query.getResultList();
+            span.setRowCount(users.size());
+            return users;
+        }
     }
 }
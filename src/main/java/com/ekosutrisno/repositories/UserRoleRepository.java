@@ -0,0 +1,77 @@
+package com.ekosutrisno.repositories;
+
+import com.ekosutrisno.models.UserRole;
+import com.ekosutrisno.tracing.Span;
+import com.ekosutrisno.tracing.Tracer;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+import javax.persistence.TypedQuery;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Access to the role assignments in tbl_user_role.
+ */
+public class UserRoleRepository {
+    private final EntityManager entityManager;
+    private final Tracer tracer;
+
+    public UserRoleRepository(EntityManager entityManager, Tracer tracer) {
+        this.entityManager = entityManager;
+        this.tracer = tracer;
+    }
+
+    /* Loads every grant of the user in a single query */
+    public Set<String> getRoleIdsByUserId(UUID userId) {
+        try (Span span = tracer.startSpan("UserRoleRepository.getRoleIdsByUserId")) {
+            TypedQuery<String> query = entityManager.createNamedQuery("getRoleIdsByUserId", String.class);
+            query.setParameter("userId", userId);
+            Set<String> roleIds = new HashSet<>(query.getResultList());
+            span.setRowCount(roleIds.size());
+            return roleIds;
+        }
+    }
+
+    public void grantRole(UUID userId, String roleId) {
+        try (Span span = tracer.startSpan("UserRoleRepository.grantRole")) {
+            EntityTransaction transaction = entityManager.getTransaction();
+
+            transaction.begin();
+            entityManager.persist(new UserRole(userId, roleId));
+            transaction.commit();
+
+            span.setRowCount(1);
+        }
+    }
+
+    public void deleteRole(UUID userId, String roleId) {
+        try (Span span = tracer.startSpan("UserRoleRepository.deleteRole")) {
+            EntityTransaction transaction = entityManager.getTransaction();
+
+            transaction.begin();
+            int rowCount = entityManager.createNamedQuery("deleteUserRole")
+                    .setParameter("userId", userId)
+                    .setParameter("roleId", roleId)
+                    .executeUpdate();
+            transaction.commit();
+
+            span.setRowCount(rowCount);
+        }
+    }
+
+    public void deleteRolesByUserId(UUID userId) {
+        try (Span span = tracer.startSpan("UserRoleRepository.deleteRolesByUserId")) {
+            EntityTransaction transaction = entityManager.getTransaction();
+
+            transaction.begin();
+            int rowCount = entityManager.createNamedQuery("deleteUserRolesByUserId")
+                    .setParameter("userId", userId)
+                    .executeUpdate();
+            transaction.commit();
+
+            span.setRowCount(rowCount);
+        }
+    }
+}
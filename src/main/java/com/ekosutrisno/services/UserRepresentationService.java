@@ -1,17 +1,24 @@
 package com.ekosutrisno.services;
 
+import com.ekosutrisno.caches.RoleGrantCache;
 import com.ekosutrisno.models.User;
 import com.ekosutrisno.repositories.UserRepository;
+import com.ekosutrisno.repositories.UserRoleRepository;
 import org.keycloak.common.util.MultivaluedHashMap;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
 import org.keycloak.storage.StorageId;
 import org.keycloak.storage.adapter.AbstractUserAdapterFederatedStorage;
 
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 /**
  * @author Eko Sutrisno
@@ -20,15 +27,24 @@ import java.util.Map;
 public class UserRepresentationService extends AbstractUserAdapterFederatedStorage {
     private User userEntity;
     private final UserRepository userRepository;
+    private final UserRoleRepository userRoleRepository;
+    private final RoleGrantCache roleGrantCache;
+    private final boolean federatedRoleFallback;
 
     public UserRepresentationService(KeycloakSession session,
                                      RealmModel realm,
                                      ComponentModel storageProviderModel,
                                      User userEntity,
-                                     UserRepository userRepository) {
+                                     UserRepository userRepository,
+                                     UserRoleRepository userRoleRepository,
+                                     RoleGrantCache roleGrantCache,
+                                     boolean federatedRoleFallback) {
         super(session, realm, storageProviderModel);
         this.userEntity = userEntity;
         this.userRepository = userRepository;
+        this.userRoleRepository = userRoleRepository;
+        this.roleGrantCache = roleGrantCache;
+        this.federatedRoleFallback = federatedRoleFallback;
     }
 
 
@@ -125,4 +141,40 @@ public class UserRepresentationService extends AbstractUserAdapterFederatedStora
         userEntity.setPassword(password);
         userEntity = userRepository.updateUser(userEntity);
     }
+
+    @Override
+    protected Set<RoleModel> getRoleMappingsInternal() {
+        // The base class adds federated mappings and the realm default role, the Stream API follows
+        return getRoleIds().stream()
+                .map(realm::getRoleById)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toSet());
+    }
+
+    @Override
+    protected Set<RoleModel> getFederatedRoleMappings() {
+        // Saves a query per role read once db/fed_user_role_mapping_to_tbl_user_role.sql has been run
+        return federatedRoleFallback ? super.getFederatedRoleMappings() : Collections.emptySet();
+    }
+
+    @Override
+    public void grantRole(RoleModel role) {
+        userRoleRepository.grantRole(userEntity.getId(), role.getId());
+        roleGrantCache.invalidate(userEntity.getId());
+    }
+
+    @Override
+    public void deleteRoleMapping(RoleModel role) {
+        userRoleRepository.deleteRole(userEntity.getId(), role.getId());
+        roleGrantCache.invalidate(userEntity.getId());
+        if (federatedRoleFallback) {
+            // The mapping may predate tbl_user_role and still live in federated storage
+            super.deleteRoleMapping(role);
+        }
+    }
+
+    private Set<String> getRoleIds() {
+        return roleGrantCache.getRoleIds(userEntity.getId(),
+                () -> userRoleRepository.getRoleIdsByUserId(userEntity.getId()));
+    }
 }
@@ -0,0 +1,154 @@
+package com.ekosutrisno.throttling;
+
+import org.jboss.logging.Logger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Lock-free, fixed size counter of failed logins per key (username, optionally with client ip).
+ * Failures are counted in a count-min sketch per time window; a key is blocked while the failures
+ * of the current and the previous window reach the limit, so a failure counts for one to two windows.
+ * Each row hashes the key with its own seed, so keys sharing a String.hashCode() do not share
+ * counters. The sketch can only overestimate, colliding keys may be blocked early but never late.
+ * The failures and rejections of every window that saw any are logged at INFO when it ends.
+ */
+public class LoginThrottle {
+    private static final Logger logger = Logger.getLogger(LoginThrottle.class);
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 1 << 14;
+    private static final long[] SEEDS = {
+            0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L};
+
+    private final String name;
+    private final int maxFailures;
+    private final long windowNanos;
+    private final LongSupplier nanoClock;
+    private final AtomicReference<Windows> windows;
+    private final LongAdder recordedFailures = new LongAdder();
+    private final LongAdder rejectedAttempts = new LongAdder();
+
+    public LoginThrottle(String name, int maxFailures, long windowSeconds) {
+        this(name, maxFailures, windowSeconds, System::nanoTime);
+    }
+
+    LoginThrottle(String name, int maxFailures, long windowSeconds, LongSupplier nanoClock) {
+        this.name = name;
+        this.nanoClock = nanoClock;
+        this.maxFailures = maxFailures;
+        this.windowNanos = TimeUnit.SECONDS.toNanos(windowSeconds);
+        // A disabled throttle does not allocate its sketches
+        this.windows = isEnabled()
+                ? new AtomicReference<>(new Windows(newSketch(), newSketch(), nanoClock.getAsLong()))
+                : null;
+    }
+
+    public boolean isEnabled() {
+        return maxFailures > 0;
+    }
+
+    public boolean isBlocked(String key) {
+        if (!isEnabled() || key == null) {
+            return false;
+        }
+        Windows current = currentWindows();
+        int[] indexes = indexes(key);
+        if (estimate(current.current, indexes) + estimate(current.previous, indexes) >= maxFailures) {
+            rejectedAttempts.increment();
+            current.rejectedAttempts.increment();
+            return true;
+        }
+        return false;
+    }
+
+    public void recordFailure(String key) {
+        if (!isEnabled() || key == null) {
+            return;
+        }
+        Windows current = currentWindows();
+        for (int index : indexes(key)) {
+            current.current.incrementAndGet(index);
+        }
+        recordedFailures.increment();
+        current.recordedFailures.increment();
+    }
+
+    public long getRecordedFailures() {
+        return recordedFailures.sum();
+    }
+
+    public long getRejectedAttempts() {
+        return rejectedAttempts.sum();
+    }
+
+    private Windows currentWindows() {
+        Windows current = windows.get();
+        long now = nanoClock.getAsLong();
+        long elapsed = now - current.startNanos;
+        if (elapsed < windowNanos) {
+            return current;
+        }
+        // After two idle windows the previous counts are stale as well
+        AtomicIntegerArray previous = elapsed < 2 * windowNanos ? current.current : newSketch();
+        if (windows.compareAndSet(current, new Windows(newSketch(), previous, now))) {
+            long windowFailures = current.recordedFailures.sum();
+            long windowRejections = current.rejectedAttempts.sum();
+            if (windowFailures > 0 || windowRejections > 0) {
+                logger.infof("Login throttle %s: %d failed logins recorded, %d attempts rejected in the last window " +
+                                "(%d and %d in total)", name, windowFailures, windowRejections,
+                        getRecordedFailures(), getRejectedAttempts());
+            }
+        }
+        return windows.get();
+    }
+
+    private static int estimate(AtomicIntegerArray sketch, int[] indexes) {
+        int min = Integer.MAX_VALUE;
+        for (int index : indexes) {
+            min = Math.min(min, sketch.get(index));
+        }
+        return min;
+    }
+
+    private static int[] indexes(String key) {
+        int[] indexes = new int[DEPTH];
+        for (int row = 0; row < DEPTH; row++) {
+            indexes[row] = row * WIDTH + (int) (hash(key, SEEDS[row]) & (WIDTH - 1));
+        }
+        return indexes;
+    }
+
+    /* 64 bit FNV-1a started from the seed, with a final mix */
+    private static long hash(String key, long seed) {
+        long hash = 0xCBF29CE484222325L ^ seed;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001B3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static AtomicIntegerArray newSketch() {
+        return new AtomicIntegerArray(DEPTH * WIDTH);
+    }
+
+    private static final class Windows {
+        final AtomicIntegerArray current;
+        final AtomicIntegerArray previous;
+        final long startNanos;
+        final LongAdder recordedFailures = new LongAdder();
+        final LongAdder rejectedAttempts = new LongAdder();
+
+        Windows(AtomicIntegerArray current, AtomicIntegerArray previous, long startNanos) {
+            this.current = current;
+            this.previous = previous;
+            this.startNanos = startNanos;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.ekosutrisno.tracing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A timed provider call or repository query. Connection acquire time, statement time
+ * and the executed SQL are collected by {@link TracingSessionEventListener} and
+ * {@link TracingStatementInspector} for the span active on the current thread.
+ */
+public class Span implements AutoCloseable {
+    static final Span NOOP = new Span(null, null, null, 0);
+
+    private final Tracer tracer;
+    private final String name;
+    private final Span parent;
+    private final long startNanos;
+    private long acquireNanos;
+    private long statementNanos;
+    private long acquireStartNanos;
+    private long statementStartNanos;
+    private int rowCount = -1;
+    private List<String> statements;
+
+    Span(Tracer tracer, String name, Span parent, long startNanos) {
+        this.tracer = tracer;
+        this.name = name;
+        this.parent = parent;
+        this.startNanos = startNanos;
+    }
+
+    public void setRowCount(int rowCount) {
+        this.rowCount = rowCount;
+    }
+
+    @Override
+    public void close() {
+        if (tracer == null) {
+            return;
+        }
+        Tracer.restoreSpan(parent);
+        long durationNanos = tracer.nanoTime() - startNanos;
+        if (parent != null) {
+            parent.acquireNanos += acquireNanos;
+            parent.statementNanos += statementNanos;
+        }
+        if (tracer.isEnabled()) {
+            Tracer.logger.infof("span=%s duration=%dus acquire=%dus statements=%dus rows=%d",
+                    name, micros(durationNanos), micros(acquireNanos), micros(statementNanos), rowCount);
+        }
+        if (isSlowQuery()) {
+            Tracer.logger.warnf("Slow query span=%s statements=%dms duration=%dms acquire=%dms rows=%d sql=%s",
+                    name, TimeUnit.NANOSECONDS.toMillis(statementNanos), TimeUnit.NANOSECONDS.toMillis(durationNanos),
+                    TimeUnit.NANOSECONDS.toMillis(acquireNanos), rowCount, statements);
+        }
+    }
+
+    /* Only statement execution counts against the threshold, not pool waits or row hydration */
+    boolean isSlowQuery() {
+        return statements != null && tracer.getSlowQueryThresholdNanos() > 0
+                && statementNanos >= tracer.getSlowQueryThresholdNanos();
+    }
+
+    long getAcquireNanos() {
+        return acquireNanos;
+    }
+
+    long getStatementNanos() {
+        return statementNanos;
+    }
+
+    void connectionAcquisitionStart() {
+        acquireStartNanos = tracer.nanoTime();
+    }
+
+    void connectionAcquisitionEnd() {
+        acquireNanos += tracer.nanoTime() - acquireStartNanos;
+    }
+
+    void statementStart() {
+        statementStartNanos = tracer.nanoTime();
+    }
+
+    void statementEnd() {
+        statementNanos += tracer.nanoTime() - statementStartNanos;
+    }
+
+    void addStatement(String sql) {
+        if (statements == null) {
+            statements = new ArrayList<>(1);
+        }
+        statements.add(sql);
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
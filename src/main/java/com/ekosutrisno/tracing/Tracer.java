@@ -0,0 +1,65 @@
+package com.ekosutrisno.tracing;
+
+import org.jboss.logging.Logger;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Log based tracing of provider calls and repository queries.
+ * When both tracing and the slow query log are off, spans are a shared no-op instance.
+ */
+public class Tracer {
+    static final Logger logger = Logger.getLogger(Tracer.class);
+    private static final ThreadLocal<Span> currentSpan = new ThreadLocal<>();
+
+    private final boolean enabled;
+    private final long slowQueryThresholdNanos;
+    private final LongSupplier nanoClock;
+
+    public Tracer(boolean enabled, long slowQueryThresholdMillis) {
+        this(enabled, slowQueryThresholdMillis, System::nanoTime);
+    }
+
+    Tracer(boolean enabled, long slowQueryThresholdMillis, LongSupplier nanoClock) {
+        this.enabled = enabled;
+        this.slowQueryThresholdNanos = slowQueryThresholdMillis * 1_000_000L;
+        this.nanoClock = nanoClock;
+    }
+
+    public boolean isActive() {
+        return enabled || slowQueryThresholdNanos > 0;
+    }
+
+    public Span startSpan(String name) {
+        if (!isActive()) {
+            return Span.NOOP;
+        }
+        Span span = new Span(this, name, currentSpan.get(), nanoTime());
+        currentSpan.set(span);
+        return span;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    long getSlowQueryThresholdNanos() {
+        return slowQueryThresholdNanos;
+    }
+
+    long nanoTime() {
+        return nanoClock.getAsLong();
+    }
+
+    static Span currentSpan() {
+        return currentSpan.get();
+    }
+
+    static void restoreSpan(Span span) {
+        if (span == null) {
+            currentSpan.remove();
+        } else {
+            currentSpan.set(span);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.ekosutrisno.tracing;
+
+import org.hibernate.BaseSessionEventListener;
+
+/**
+ * Adds connection acquire and statement execution time to the active {@link Span}.
+ */
+public class TracingSessionEventListener extends BaseSessionEventListener {
+    public static final TracingSessionEventListener INSTANCE = new TracingSessionEventListener();
+
+    @Override
+    public void jdbcConnectionAcquisitionStart() {
+        Span span = Tracer.currentSpan();
+        if (span != null) {
+            span.connectionAcquisitionStart();
+        }
+    }
+
+    @Override
+    public void jdbcConnectionAcquisitionEnd() {
+        Span span = Tracer.currentSpan();
+        if (span != null) {
+            span.connectionAcquisitionEnd();
+        }
+    }
+
+    @Override
+    public void jdbcExecuteStatementStart() {
+        Span span = Tracer.currentSpan();
+        if (span != null) {
+            span.statementStart();
+        }
+    }
+
+    @Override
+    public void jdbcExecuteStatementEnd() {
+        Span span = Tracer.currentSpan();
+        if (span != null) {
+            span.statementEnd();
+        }
+    }
+}
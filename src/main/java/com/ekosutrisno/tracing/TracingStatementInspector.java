@@ -0,0 +1,19 @@
+package com.ekosutrisno.tracing;
+
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+
+/**
+ * Records the parameterized SQL prepared while a {@link Span} is active, for the slow query log.
+ */
+public class TracingStatementInspector implements StatementInspector {
+    public static final TracingStatementInspector INSTANCE = new TracingStatementInspector();
+
+    @Override
+    public String inspect(String sql) {
+        Span span = Tracer.currentSpan();
+        if (span != null) {
+            span.addStatement(sql);
+        }
+        return sql;
+    }
+}
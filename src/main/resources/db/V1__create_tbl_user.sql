@@ -0,0 +1,17 @@
+-- Versioned schema of the provider, for db:schemaAction = validate or none. Apply V1 to V4 in order,
+-- with psql or as migrations of a tool like Flyway. Each script only adds what is missing, so they
+-- can also be applied to a database that hbm2ddl update created or altered.
+-- The user table as created before realm scoping, role mappings and login statistics.
+
+BEGIN;
+
+CREATE TABLE IF NOT EXISTS tbl_user
+(
+    id       UUID NOT NULL PRIMARY KEY,
+    username VARCHAR(255) UNIQUE,
+    email    VARCHAR(255) UNIQUE,
+    password VARCHAR(255),
+    phone    VARCHAR(255)
+);
+
+COMMIT;
@@ -0,0 +1,16 @@
+-- Role mappings of the users in tbl_user, by Keycloak role id.
+-- Mappings Keycloak stored in federated storage before are copied by fed_user_role_mapping_to_tbl_user_role.sql.
+
+BEGIN;
+
+CREATE TABLE IF NOT EXISTS tbl_user_role
+(
+    id      UUID         NOT NULL PRIMARY KEY,
+    user_id UUID         NOT NULL,
+    role_id VARCHAR(255) NOT NULL,
+    UNIQUE (user_id, role_id)
+);
+
+CREATE INDEX IF NOT EXISTS idx_user_role_user_id ON tbl_user_role (user_id);
+
+COMMIT;
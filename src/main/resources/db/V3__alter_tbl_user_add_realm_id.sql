@@ -0,0 +1,46 @@
+-- Adds realm_id to tbl_user and makes usernames and emails unique per realm instead of per table.
+-- Existing users get realm_id = '', which only a provider without db:realmScoped sees. Before enabling
+-- db:realmScoped, assign them to the realm with tbl_user_realm_unique_constraints.sql or
+-- tbl_user_partition_by_realm.sql.
+
+BEGIN;
+
+ALTER TABLE tbl_user ADD COLUMN IF NOT EXISTS realm_id VARCHAR(36) NOT NULL DEFAULT '';
+
+DO
+$$
+    DECLARE
+        constraint_name NAME;
+    BEGIN
+        FOR constraint_name IN
+            SELECT c.conname
+            FROM pg_constraint c
+                     JOIN pg_attribute a ON a.attrelid = c.conrelid AND a.attnum = c.conkey[1]
+            WHERE c.conrelid = 'tbl_user'::regclass
+              AND c.contype = 'u'
+              AND array_length(c.conkey, 1) = 1
+              AND a.attname IN ('username', 'email')
+            LOOP
+                EXECUTE format('ALTER TABLE tbl_user DROP CONSTRAINT %I', constraint_name);
+            END LOOP;
+
+        IF NOT EXISTS(SELECT 1
+                      FROM pg_constraint
+                      WHERE conrelid = 'tbl_user'::regclass
+                        AND contype = 'u'
+                        AND conkey = ARRAY [(SELECT attnum FROM pg_attribute WHERE attrelid = 'tbl_user'::regclass AND attname = 'realm_id'),
+                                            (SELECT attnum FROM pg_attribute WHERE attrelid = 'tbl_user'::regclass AND attname = 'username')]::int2[]) THEN
+            ALTER TABLE tbl_user ADD UNIQUE (realm_id, username);
+        END IF;
+        IF NOT EXISTS(SELECT 1
+                      FROM pg_constraint
+                      WHERE conrelid = 'tbl_user'::regclass
+                        AND contype = 'u'
+                        AND conkey = ARRAY [(SELECT attnum FROM pg_attribute WHERE attrelid = 'tbl_user'::regclass AND attname = 'realm_id'),
+                                            (SELECT attnum FROM pg_attribute WHERE attrelid = 'tbl_user'::regclass AND attname = 'email')]::int2[]) THEN
+            ALTER TABLE tbl_user ADD UNIQUE (realm_id, email);
+        END IF;
+    END
+$$;
+
+COMMIT;
@@ -0,0 +1,9 @@
+-- Adds the login statistics written by the provider when loginStats:enabled is on.
+-- last_login_at is in epoch millis and stays null until the first recorded login.
+
+BEGIN;
+
+ALTER TABLE tbl_user ADD COLUMN IF NOT EXISTS last_login_at BIGINT;
+ALTER TABLE tbl_user ADD COLUMN IF NOT EXISTS login_count BIGINT NOT NULL DEFAULT 0;
+
+COMMIT;
@@ -0,0 +1,34 @@
+-- Copies the role mappings Keycloak keeps in federated storage (fed_user_role_mapping) for users of
+-- this provider into tbl_user_role, where they are served from the role grant cache.
+-- Afterwards set roles:federatedFallback to false, so role reads stop querying fed_user_role_mapping.
+--
+-- fed_user_role_mapping lives in the Keycloak database, tbl_user_role in the provider's database.
+-- Export the mappings of the provider from the Keycloak database first, <component id> is the id of
+-- the user federation provider:
+-- \copy (SELECT user_id, role_id FROM fed_user_role_mapping WHERE storage_provider_id = '<component id>') TO 'fed_user_role_mapping.csv' CSV
+--
+-- Then run this script with psql against the provider's database from the directory holding the export.
+-- It can be run again, mappings already in tbl_user_role are skipped.
+
+BEGIN;
+
+CREATE TEMPORARY TABLE fed_user_role_mapping_import
+(
+    user_id VARCHAR(255) NOT NULL,
+    role_id VARCHAR(36)  NOT NULL
+) ON COMMIT DROP;
+
+\copy fed_user_role_mapping_import FROM 'fed_user_role_mapping.csv' CSV
+
+-- Federated user ids are f:<component id>:<tbl_user id>
+INSERT INTO tbl_user_role (id, user_id, role_id)
+SELECT md5(random()::TEXT || clock_timestamp()::TEXT)::UUID, mapping.user_id, mapping.role_id
+FROM (SELECT DISTINCT CAST(substring(user_id FROM '[^:]+$') AS UUID) AS user_id, role_id
+      FROM fed_user_role_mapping_import) mapping
+WHERE EXISTS(SELECT 1 FROM tbl_user u WHERE u.id = mapping.user_id)
+  AND NOT EXISTS(SELECT 1 FROM tbl_user_role r WHERE r.user_id = mapping.user_id AND r.role_id = mapping.role_id);
+
+COMMIT;
+
+-- Once roles:federatedFallback is off, the copied rows can be removed from the Keycloak database:
+-- DELETE FROM fed_user_role_mapping WHERE storage_provider_id = '<component id>';
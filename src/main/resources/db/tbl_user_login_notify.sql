@@ -0,0 +1,32 @@
+-- Publishes every username and email written to tbl_user on the tbl_user_login channel. Providers with
+-- filter:enabled listen on it, so users created by other Keycloak nodes or other applications reach
+-- their existence filters. Filters let every lookup through until this has been run.
+-- Run once per database, and again after tbl_user_partition_by_realm.sql, which recreates tbl_user.
+-- Requires PostgreSQL 11 or later for row triggers on a partitioned tbl_user.
+
+BEGIN;
+
+-- Counts the writes, a persisted filter is only reused if the count did not change since it was built
+CREATE SEQUENCE IF NOT EXISTS tbl_user_login_seq;
+-- Writes made while the trigger was missing were not counted, never reuse a filter persisted before
+SELECT nextval('tbl_user_login_seq');
+
+CREATE OR REPLACE FUNCTION tbl_user_login_notify() RETURNS TRIGGER AS
+$$
+BEGIN
+    PERFORM nextval('tbl_user_login_seq');
+    -- Delivered to the listeners when the transaction commits
+    PERFORM pg_notify('tbl_user_login',
+                      json_build_object('realm_id', NEW.realm_id, 'username', NEW.username, 'email', NEW.email)::TEXT);
+    RETURN NULL;
+END
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS tbl_user_login_notify ON tbl_user;
+CREATE TRIGGER tbl_user_login_notify
+    AFTER INSERT OR UPDATE OF realm_id, username, email
+    ON tbl_user
+    FOR EACH ROW
+EXECUTE PROCEDURE tbl_user_login_notify();
+
+COMMIT;
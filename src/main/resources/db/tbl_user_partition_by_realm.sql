@@ -0,0 +1,71 @@
+-- Converts tbl_user into a table list-partitioned by realm_id, so lookups scoped to a realm
+-- (every named query on User) are pruned to that realm's partition.
+-- Run once with the provider stopped, then configure it with db:schemaAction = validate or none,
+-- hbm2ddl update does not understand partitioned tables.
+-- Run with psql, passing the id (not the name) of the realm the provider belongs to:
+--   psql -v realm_id=<realm id> -f tbl_user_partition_by_realm.sql
+-- Pass -v realm_id= (empty) for a provider that stays without db:realmScoped.
+-- Run db/tbl_user_login_notify.sql again afterwards if filter:enabled is used, the trigger is dropped with the old table.
+
+BEGIN;
+
+ALTER TABLE tbl_user RENAME TO tbl_user_unpartitioned;
+
+-- Users stored before realm scoping have realm_id = '' and are invisible to a realm scoped provider,
+-- assign them to its realm so they get its partition below
+UPDATE tbl_user_unpartitioned SET realm_id = :'realm_id' WHERE COALESCE(realm_id, '') = '';
+
+CREATE TABLE tbl_user
+(
+    id            UUID        NOT NULL,
+    realm_id      VARCHAR(36) NOT NULL DEFAULT '',
+    username      VARCHAR(255),
+    email         VARCHAR(255),
+    password      VARCHAR(255),
+    phone         VARCHAR(255),
+    last_login_at BIGINT,
+    login_count   BIGINT      NOT NULL DEFAULT 0,
+    -- Keys of a partitioned table must contain the partition key
+    PRIMARY KEY (id, realm_id),
+    UNIQUE (realm_id, username),
+    UNIQUE (realm_id, email)
+) PARTITION BY LIST (realm_id);
+
+-- One partition per realm already holding users. They must exist before the rows are copied,
+-- PostgreSQL refuses a new partition while the default partition holds rows of its realm
+DO
+$$
+    DECLARE
+        realm VARCHAR(36);
+    BEGIN
+        FOR realm IN SELECT DISTINCT realm_id FROM tbl_user_unpartitioned WHERE COALESCE(realm_id, '') <> ''
+            LOOP
+                EXECUTE format('CREATE TABLE %I PARTITION OF tbl_user FOR VALUES IN (%L)', 'tbl_user_' || realm, realm);
+            END LOOP;
+    END
+$$;
+
+-- Users of providers without db:realmScoped and of realms without a partition of their own
+CREATE TABLE tbl_user_default PARTITION OF tbl_user DEFAULT;
+
+INSERT INTO tbl_user (id, realm_id, username, email, password, phone, last_login_at, login_count)
+SELECT id, COALESCE(realm_id, ''), username, email, password, phone, last_login_at, COALESCE(login_count, 0)
+FROM tbl_user_unpartitioned;
+
+DROP TABLE tbl_user_unpartitioned;
+
+COMMIT;
+
+-- Realms enabling db:realmScoped later need their partition before their first user is created:
+-- CREATE TABLE "tbl_user_<realm id>" PARTITION OF tbl_user FOR VALUES IN ('<realm id>');
+--
+-- If the default partition already holds users of that realm, or unscoped users (realm_id = '') the
+-- realm takes over, move them while creating it:
+-- BEGIN;
+-- ALTER TABLE tbl_user DETACH PARTITION tbl_user_default;
+-- UPDATE tbl_user_default SET realm_id = '<realm id>' WHERE realm_id = '';
+-- CREATE TABLE "tbl_user_<realm id>" PARTITION OF tbl_user FOR VALUES IN ('<realm id>');
+-- INSERT INTO tbl_user SELECT * FROM tbl_user_default WHERE realm_id = '<realm id>';
+-- DELETE FROM tbl_user_default WHERE realm_id = '<realm id>';
+-- ALTER TABLE tbl_user ATTACH PARTITION tbl_user_default DEFAULT;
+-- COMMIT;
@@ -0,0 +1,51 @@
+-- Replaces the unique constraints on username and email of tbl_user created before realm scoping
+-- with (realm_id, username) and (realm_id, email). hbm2ddl update adds the new constraints but never
+-- drops the old ones, so this must be run once on existing databases before enabling db:realmScoped,
+-- otherwise two realms still cannot share a username or email.
+-- Not needed after tbl_user_partition_by_realm.sql, which recreates the table with the new constraints.
+-- On databases migrated with V3__alter_tbl_user_add_realm_id.sql it only assigns the users to the realm.
+-- Run with psql, passing the id (not the name) of the realm the provider belongs to:
+--   psql -v realm_id=<realm id> -f tbl_user_realm_unique_constraints.sql
+
+BEGIN;
+
+-- Users stored before realm scoping have realm_id = '' and are invisible to a realm scoped provider
+UPDATE tbl_user SET realm_id = :'realm_id' WHERE COALESCE(realm_id, '') = '';
+
+DO
+$$
+    DECLARE
+        constraint_name NAME;
+    BEGIN
+        FOR constraint_name IN
+            SELECT c.conname
+            FROM pg_constraint c
+                     JOIN pg_attribute a ON a.attrelid = c.conrelid AND a.attnum = c.conkey[1]
+            WHERE c.conrelid = 'tbl_user'::regclass
+              AND c.contype = 'u'
+              AND array_length(c.conkey, 1) = 1
+              AND a.attname IN ('username', 'email')
+            LOOP
+                EXECUTE format('ALTER TABLE tbl_user DROP CONSTRAINT %I', constraint_name);
+            END LOOP;
+
+        IF NOT EXISTS(SELECT 1
+                      FROM pg_constraint
+                      WHERE conrelid = 'tbl_user'::regclass
+                        AND contype = 'u'
+                        AND conkey = ARRAY [(SELECT attnum FROM pg_attribute WHERE attrelid = 'tbl_user'::regclass AND attname = 'realm_id'),
+                                            (SELECT attnum FROM pg_attribute WHERE attrelid = 'tbl_user'::regclass AND attname = 'username')]::int2[]) THEN
+            ALTER TABLE tbl_user ADD UNIQUE (realm_id, username);
+        END IF;
+        IF NOT EXISTS(SELECT 1
+                      FROM pg_constraint
+                      WHERE conrelid = 'tbl_user'::regclass
+                        AND contype = 'u'
+                        AND conkey = ARRAY [(SELECT attnum FROM pg_attribute WHERE attrelid = 'tbl_user'::regclass AND attname = 'realm_id'),
+                                            (SELECT attnum FROM pg_attribute WHERE attrelid = 'tbl_user'::regclass AND attname = 'email')]::int2[]) THEN
+            ALTER TABLE tbl_user ADD UNIQUE (realm_id, email);
+        END IF;
+    END
+$$;
+
+COMMIT;
@@ -0,0 +1,167 @@
+package com.ekosutrisno;
+
+import com.ekosutrisno.caches.RoleGrantCache;
+import com.ekosutrisno.caches.UserExistenceFilter;
+import com.ekosutrisno.models.User;
+import com.ekosutrisno.models.UserRole;
+import com.ekosutrisno.repositories.LoginRecorder;
+import com.ekosutrisno.repositories.UserLoginListener;
+import com.ekosutrisno.throttling.LoginThrottle;
+import org.hibernate.jpa.HibernatePersistenceProvider;
+import org.junit.jupiter.api.Test;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.provider.ProviderConfigProperty;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.metamodel.ManagedType;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ErajayaKeycloakStorageProviderFactoryTest {
+    private final ErajayaKeycloakStorageProviderFactory factory = new ErajayaKeycloakStorageProviderFactory();
+
+    @Test
+    void productionModeListsEntitiesWithoutScanning() {
+        assertTrue(factory.getPersistenceUnitInfo(true).getJarFileUrls().isEmpty());
+        assertTrue(factory.getPersistenceUnitInfo(true).excludeUnlistedClasses());
+        assertFalse(getHibernateProperties(true).containsKey("hibernate.archive.autodetection"));
+        assertEquals("validate", getHibernateProperties(true).get("hibernate.hbm2ddl.auto"));
+    }
+
+    @Test
+    void measuresEntityManagerFactoryStartup() {
+        long scanningNanos = timeStartup(false);
+        long productionNanos = timeStartup(true);
+
+        System.out.printf("EntityManagerFactory startup: %d ms with scanning, %d ms in production mode%n",
+                TimeUnit.NANOSECONDS.toMillis(scanningNanos), TimeUnit.NANOSECONDS.toMillis(productionNanos));
+    }
+
+    @Test
+    void helpTextsOnlyReferenceShippedScripts() {
+        Pattern script = Pattern.compile("db/[\\w.]+\\.sql");
+        Set<String> scripts = new HashSet<>();
+        for (ProviderConfigProperty property : factory.getConfigProperties()) {
+            Matcher matcher = script.matcher(String.valueOf(property.getHelpText()));
+            while (matcher.find()) {
+                scripts.add(matcher.group());
+            }
+        }
+
+        assertTrue(scripts.containsAll(Arrays.asList("db/V1__create_tbl_user.sql", "db/V2__create_tbl_user_role.sql",
+                "db/V3__alter_tbl_user_add_realm_id.sql", "db/V4__alter_tbl_user_add_login_stats.sql")));
+        for (String path : scripts) {
+            assertNotNull(getClass().getClassLoader().getResource(path), path);
+        }
+    }
+
+    @Test
+    void realmScopedProvidersUseTheirRealmId() {
+        ComponentModel model = new ComponentModel();
+        model.setParentId("realm-a");
+
+        assertEquals(User.UNSCOPED_REALM_ID, ErajayaKeycloakStorageProviderFactory.getRealmId(model));
+        model.getConfig().putSingle(ErajayaKeycloakStorageProviderFactory.DB_REALM_SCOPED_KEY, "true");
+        assertEquals("realm-a", ErajayaKeycloakStorageProviderFactory.getRealmId(model));
+    }
+
+    @Test
+    void realmsSharingAConnectionGetSeparateCaches() {
+        assertNotEquals(ErajayaKeycloakStorageProviderFactory.getCacheKey("db", "realm-a"),
+                ErajayaKeycloakStorageProviderFactory.getCacheKey("db", "realm-b"));
+        assertNotEquals(ErajayaKeycloakStorageProviderFactory.getCacheKey("db", User.UNSCOPED_REALM_ID),
+                ErajayaKeycloakStorageProviderFactory.getCacheKey("db", "realm-a"));
+    }
+
+    @Test
+    void preRemoveStopsBackgroundTasksAndDropsCaches() {
+        ComponentModel model = new ComponentModel();
+        model.getConfig().putSingle(ErajayaKeycloakStorageProviderFactory.DB_CONNECTION_NAME_KEY, "test");
+        String key = ErajayaKeycloakStorageProviderFactory.getCacheKey("test", User.UNSCOPED_REALM_ID);
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            ScheduledFuture<?> rebuild = executor.scheduleWithFixedDelay(() -> {
+            }, 1, 1, TimeUnit.HOURS);
+            ScheduledFuture<?> flush = executor.scheduleWithFixedDelay(() -> {
+            }, 1, 1, TimeUnit.HOURS);
+            UserExistenceFilter existenceFilter = new UserExistenceFilter(key, 0.01, null);
+            UserLoginListener userLoginListener = new UserLoginListener("test", "jdbc:postgresql://localhost/test",
+                    "user", "password");
+            userLoginListener.register(User.UNSCOPED_REALM_ID, existenceFilter, () -> {
+            });
+            factory.roleGrantCaches.put(key, new RoleGrantCache(10, 60));
+            factory.loginThrottles.put(key, new LoginThrottle(key, 5, 60));
+            factory.existenceFilters.put(key, existenceFilter);
+            factory.existenceFilterRebuilds.put(key, rebuild);
+            factory.userLoginListeners.put("test", userLoginListener);
+            factory.loginRecorders.put(key, new LoginRecorder(null, User.UNSCOPED_REALM_ID, 10, executor));
+            factory.loginRecorderFlushes.put(key, flush);
+
+            factory.preRemove(null, null, model);
+
+            assertTrue(rebuild.isCancelled());
+            assertTrue(flush.isCancelled());
+            assertTrue(userLoginListener.isEmpty());
+            assertFalse(factory.userLoginListeners.containsKey("test"));
+            assertFalse(factory.roleGrantCaches.containsKey(key));
+            assertFalse(factory.loginThrottles.containsKey(key));
+            assertFalse(factory.existenceFilters.containsKey(key));
+            assertFalse(factory.existenceFilterRebuilds.containsKey(key));
+            assertFalse(factory.loginRecorders.containsKey(key));
+            assertFalse(factory.loginRecorderFlushes.containsKey(key));
+        } finally {
+            executor.shutdownNow();
+            factory.close();
+        }
+    }
+
+    private long timeStartup(boolean productionMode) {
+        Map<String, Object> properties = getHibernateProperties(productionMode);
+        // Bootstrap without a database: no schema action, no metadata lookup, no pooled connection
+        properties.put("hibernate.hbm2ddl.auto", "none");
+        properties.put("hibernate.dialect", "org.hibernate.dialect.PostgreSQL95Dialect");
+        properties.put("hibernate.temp.use_jdbc_metadata_defaults", "false");
+        properties.put("hibernate.connection.initial_pool_size", "0");
+
+        long start = System.nanoTime();
+        EntityManagerFactory entityManagerFactory = new HibernatePersistenceProvider()
+                .createContainerEntityManagerFactory(factory.getPersistenceUnitInfo(productionMode), properties);
+        long elapsed = System.nanoTime() - start;
+        try {
+            Set<Class<?>> entities = entityManagerFactory.getMetamodel().getEntities().stream()
+                    .map(ManagedType::getJavaType)
+                    .collect(Collectors.toSet());
+            assertEquals(new HashSet<>(Arrays.asList(User.class, UserRole.class)), entities);
+        } finally {
+            entityManagerFactory.close();
+        }
+        return elapsed;
+    }
+
+    private static Map<String, Object> getHibernateProperties(boolean productionMode) {
+        ComponentModel model = new ComponentModel();
+        model.getConfig().putSingle(ErajayaKeycloakStorageProviderFactory.DB_CONNECTION_NAME_KEY, "test");
+        model.getConfig().putSingle(ErajayaKeycloakStorageProviderFactory.DB_HOST_KEY, "localhost");
+        model.getConfig().putSingle(ErajayaKeycloakStorageProviderFactory.DB_PORT_KEY, "5432");
+        model.getConfig().putSingle(ErajayaKeycloakStorageProviderFactory.DB_DATABASE_KEY, "test");
+        model.getConfig().putSingle(ErajayaKeycloakStorageProviderFactory.DB_USERNAME_KEY, "user");
+        model.getConfig().putSingle(ErajayaKeycloakStorageProviderFactory.DB_PASSWORD_KEY, "password");
+        model.getConfig().putSingle(ErajayaKeycloakStorageProviderFactory.DB_PRODUCTION_MODE_KEY,
+                String.valueOf(productionMode));
+        model.getConfig().putSingle(ErajayaKeycloakStorageProviderFactory.DB_SCHEMA_ACTION_KEY,
+                productionMode ? ErajayaKeycloakStorageProviderFactory.SCHEMA_ACTION_VALIDATE
+                        : ErajayaKeycloakStorageProviderFactory.SCHEMA_ACTION_UPDATE);
+        return ErajayaKeycloakStorageProviderFactory.getHibernateProperties(model);
+    }
+}
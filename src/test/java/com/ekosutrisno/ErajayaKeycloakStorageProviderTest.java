@@ -0,0 +1,64 @@
+package com.ekosutrisno;
+
+import com.ekosutrisno.caches.RoleGrantCache;
+import com.ekosutrisno.caches.UserExistenceFilter;
+import com.ekosutrisno.models.User;
+import com.ekosutrisno.repositories.UserRepository;
+import com.ekosutrisno.repositories.UserRoleRepository;
+import com.ekosutrisno.throttling.LoginThrottle;
+import com.ekosutrisno.tracing.Tracer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.storage.StorageId;
+
+import javax.persistence.EntityManagerFactory;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ErajayaKeycloakStorageProviderTest {
+    private final EntityManagerFactory entityManagerFactory = TestDatabase.create(UUID.randomUUID().toString());
+    private final ComponentModel model = new ComponentModel();
+
+    ErajayaKeycloakStorageProviderTest() {
+        model.setId("component");
+    }
+
+    @AfterEach
+    void close() {
+        entityManagerFactory.close();
+    }
+
+    @Test
+    void getUserByIdOnlyFindsUsersOfTheProviderRealm() {
+        User aliceA = repository("realm-a").createUser(user("alice"));
+        User aliceB = repository("realm-b").createUser(user("alice"));
+        ErajayaKeycloakStorageProvider realmA = provider("realm-a");
+
+        assertEquals(StorageId.keycloakId(model, aliceA.getId().toString()),
+                realmA.getUserById(StorageId.keycloakId(model, aliceA.getId().toString()), null).getId());
+        // A federation link to a user outside the realm, or a deleted one, resolves to no user
+        assertNull(realmA.getUserById(StorageId.keycloakId(model, aliceB.getId().toString()), null));
+        assertNull(realmA.getUserById(StorageId.keycloakId(model, UUID.randomUUID().toString()), null));
+    }
+
+    private ErajayaKeycloakStorageProvider provider(String realmId) {
+        Tracer tracer = new Tracer(false, 0);
+        return new ErajayaKeycloakStorageProvider(repository(realmId),
+                new UserRoleRepository(entityManagerFactory.createEntityManager(), tracer), new RoleGrantCache(10, 60),
+                true, tracer, new LoginThrottle("test", 0, 60), false, null, null, model);
+    }
+
+    private UserRepository repository(String realmId) {
+        return new UserRepository(entityManagerFactory.createEntityManager(), new Tracer(false, 0), realmId,
+                new UserExistenceFilter(realmId, 0.01, null));
+    }
+
+    private static User user(String username) {
+        User user = new User();
+        user.setUsername(username);
+        user.setEmail(username + "@example.com");
+        return user;
+    }
+}
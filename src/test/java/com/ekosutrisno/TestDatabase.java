@@ -0,0 +1,30 @@
+package com.ekosutrisno;
+
+import com.ekosutrisno.tracing.TracingStatementInspector;
+import org.hibernate.jpa.HibernatePersistenceProvider;
+
+import javax.persistence.EntityManagerFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-memory H2 database with the provider's entities, for tests of the repositories.
+ */
+public final class TestDatabase {
+    private TestDatabase() {
+    }
+
+    public static EntityManagerFactory create(String name) {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("hibernate.connection.driver_class", "org.h2.Driver");
+        properties.put("hibernate.connection.url", "jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1");
+        properties.put("hibernate.connection.username", "sa");
+        properties.put("hibernate.connection.password", "");
+        properties.put("hibernate.dialect", "org.hibernate.dialect.H2Dialect");
+        properties.put("hibernate.hbm2ddl.auto", "create-drop");
+        properties.put("hibernate.connection.autocommit", "true");
+        properties.put("hibernate.session_factory.statement_inspector", TracingStatementInspector.INSTANCE);
+        return new HibernatePersistenceProvider().createContainerEntityManagerFactory(
+                new ErajayaKeycloakStorageProviderFactory().getPersistenceUnitInfo(true), properties);
+    }
+}
@@ -0,0 +1,64 @@
+package com.ekosutrisno.caches;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BloomFilterTest {
+
+    @Test
+    void hasNoFalseNegatives() {
+        BloomFilter filter = BloomFilter.create(10_000, 0.01, 0);
+        for (int i = 0; i < 10_000; i++) {
+            filter.add("user-" + i);
+        }
+
+        for (int i = 0; i < 10_000; i++) {
+            assertTrue(filter.mightContain("user-" + i));
+        }
+        assertEquals(10_000, filter.getInsertions());
+    }
+
+    @Test
+    void falsePositiveRateStaysNearTarget() {
+        BloomFilter filter = BloomFilter.create(10_000, 0.01, 0);
+        for (int i = 0; i < 10_000; i++) {
+            filter.add("user-" + i);
+        }
+
+        int falsePositives = 0;
+        int probes = 100_000;
+        for (int i = 0; i < probes; i++) {
+            if (filter.mightContain("unknown-" + i)) {
+                falsePositives++;
+            }
+        }
+        double rate = (double) falsePositives / probes;
+        System.out.printf("Bloom filter: %d KiB, expected false positive rate %.4f, observed %.4f%n",
+                filter.getMemoryBytes() / 1024, filter.getExpectedFalsePositiveRate(), rate);
+        assertTrue(rate < 0.02, "false positive rate " + rate);
+    }
+
+    @Test
+    void survivesWriteAndRead() throws Exception {
+        BloomFilter filter = BloomFilter.create(100, 0.01, 7);
+        filter.add("alice");
+        filter.add("bob@example.com");
+        Path file = Files.createTempFile("bloom", ".bloom");
+        try {
+            filter.writeTo(file);
+            BloomFilter read = BloomFilter.readFrom(file);
+
+            assertTrue(read.mightContain("alice"));
+            assertTrue(read.mightContain("bob@example.com"));
+            assertFalse(read.mightContain("carol"));
+            assertEquals(2, read.getInsertions());
+            assertEquals(7, read.getVersion());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
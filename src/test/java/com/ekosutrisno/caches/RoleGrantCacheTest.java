@@ -0,0 +1,103 @@
+package com.ekosutrisno.caches;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RoleGrantCacheTest {
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicInteger loads = new AtomicInteger();
+
+    @Test
+    void servesCachedGrantsWithoutReloading() {
+        RoleGrantCache cache = new RoleGrantCache(10, 60, clock::get);
+        UUID userId = UUID.randomUUID();
+
+        assertEquals(Collections.singleton("admin"), cache.getRoleIds(userId, () -> load("admin")));
+        assertEquals(Collections.singleton("admin"), cache.getRoleIds(userId, () -> load("other")));
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    void invalidateForcesReload() {
+        RoleGrantCache cache = new RoleGrantCache(10, 60, clock::get);
+        UUID userId = UUID.randomUUID();
+        cache.getRoleIds(userId, () -> load("admin"));
+
+        cache.invalidate(userId);
+
+        assertEquals(Collections.emptySet(), cache.getRoleIds(userId, () -> load()));
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    void expiredEntriesAreReloaded() {
+        RoleGrantCache cache = new RoleGrantCache(10, 60, clock::get);
+        UUID userId = UUID.randomUUID();
+        cache.getRoleIds(userId, () -> load("admin"));
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(59));
+        assertEquals(Collections.singleton("admin"), cache.getRoleIds(userId, () -> load()));
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertEquals(Collections.emptySet(), cache.getRoleIds(userId, () -> load()));
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedEntry() {
+        RoleGrantCache cache = new RoleGrantCache(2, 60, clock::get);
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+        UUID third = UUID.randomUUID();
+        cache.getRoleIds(first, () -> load("a"));
+        cache.getRoleIds(second, () -> load("b"));
+        cache.getRoleIds(first, () -> load("a"));
+
+        cache.getRoleIds(third, () -> load("c"));
+
+        cache.getRoleIds(first, () -> load("a"));
+        assertEquals(3, loads.get());
+        cache.getRoleIds(second, () -> load("b"));
+        assertEquals(4, loads.get());
+    }
+
+    @Test
+    void doesNotCacheLoadRacingAnInvalidation() {
+        RoleGrantCache cache = new RoleGrantCache(10, 60, clock::get);
+        UUID userId = UUID.randomUUID();
+
+        cache.getRoleIds(userId, () -> {
+            // A revoke commits while the stale grants are being read
+            cache.invalidate(userId);
+            return load("revoked");
+        });
+
+        assertEquals(Collections.emptySet(), cache.getRoleIds(userId, () -> load()));
+    }
+
+    @Test
+    void zeroTtlDisablesCaching() {
+        RoleGrantCache cache = new RoleGrantCache(10, 0, clock::get);
+        UUID userId = UUID.randomUUID();
+
+        cache.getRoleIds(userId, () -> load("admin"));
+        cache.getRoleIds(userId, () -> load("admin"));
+
+        assertEquals(2, loads.get());
+    }
+
+    private Set<String> load(String... roleIds) {
+        loads.incrementAndGet();
+        Set<String> set = new HashSet<>();
+        Collections.addAll(set, roleIds);
+        return set;
+    }
+}
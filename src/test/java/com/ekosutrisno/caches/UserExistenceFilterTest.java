@@ -0,0 +1,159 @@
+package com.ekosutrisno.caches;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UserExistenceFilterTest {
+    private static final long VERSION = 42;
+
+    @Test
+    void letsEveryLoginThroughBeforeTheFirstBuild() {
+        UserExistenceFilter filter = listening(new UserExistenceFilter("test", 0.01, null));
+
+        assertTrue(filter.mightContain("anyone"));
+    }
+
+    @Test
+    void shortCircuitsUnknownLoginsAfterBuild() {
+        UserExistenceFilter filter = listening(new UserExistenceFilter("test", 0.01, null));
+
+        filter.rebuild(1, VERSION, source -> Arrays.asList("Alice", "alice@example.com").forEach(source));
+
+        assertTrue(filter.isTrusted());
+        assertTrue(filter.mightContain("alice"));
+        assertTrue(filter.mightContain("ALICE@example.com"));
+        assertFalse(filter.mightContain("mallory"));
+    }
+
+    @Test
+    void letsEveryLoginThroughWhileNotListening() {
+        UserExistenceFilter filter = new UserExistenceFilter("test", 0.01, null);
+        filter.rebuild(1, VERSION, source -> source.accept("alice"));
+
+        // Another node may have created mallory, nothing would have told this filter
+        assertFalse(filter.isTrusted());
+        assertTrue(filter.mightContain("mallory"));
+    }
+
+    @Test
+    void buildFromBeforeListeningIsOnlyUsedIfStillCurrent() {
+        UserExistenceFilter filter = new UserExistenceFilter("test", 0.01, null);
+        filter.rebuild(1, VERSION, source -> source.accept("alice"));
+
+        assertFalse(filter.startListening(VERSION + 1));
+        assertTrue(filter.mightContain("mallory"));
+        assertTrue(filter.startListening(VERSION));
+        assertFalse(filter.mightContain("mallory"));
+    }
+
+    @Test
+    void stopsShortCircuitingWhenListeningStops() {
+        UserExistenceFilter filter = listening(new UserExistenceFilter("test", 0.01, null));
+        filter.rebuild(1, VERSION, source -> source.accept("alice"));
+
+        filter.stopListening();
+        assertTrue(filter.mightContain("mallory"));
+
+        // Logins written while disconnected may be missing, even at the old version count
+        assertFalse(filter.startListening(UserExistenceFilter.UNKNOWN_VERSION));
+        assertTrue(filter.mightContain("mallory"));
+        filter.rebuild(1, VERSION + 1, source -> source.accept("alice"));
+        assertFalse(filter.mightContain("mallory"));
+    }
+
+    @Test
+    void buildRacingAReconnectIsNotTrusted() {
+        UserExistenceFilter filter = listening(new UserExistenceFilter("test", 0.01, null));
+
+        filter.rebuild(1, VERSION, source -> {
+            source.accept("alice");
+            // The connection drops and comes back while the table is streamed
+            filter.stopListening();
+            filter.startListening(UserExistenceFilter.UNKNOWN_VERSION);
+        });
+
+        assertTrue(filter.mightContain("mallory"));
+    }
+
+    @Test
+    void addedLoginsAreFound() {
+        UserExistenceFilter filter = listening(new UserExistenceFilter("test", 0.01, null));
+        filter.rebuild(0, VERSION, source -> {
+        });
+
+        filter.add("bob");
+
+        assertTrue(filter.mightContain("bob"));
+    }
+
+    @Test
+    void loginsAddedDuringRebuildReachTheNewFilter() {
+        UserExistenceFilter filter = listening(new UserExistenceFilter("test", 0.01, null));
+
+        filter.rebuild(1, VERSION, source -> {
+            source.accept("alice");
+            // A user created while the table is streamed, after its row was passed
+            filter.add("bob");
+        });
+
+        assertTrue(filter.mightContain("bob"));
+    }
+
+    @Test
+    void rebuildForgetsDeletedUsers() {
+        UserExistenceFilter filter = listening(new UserExistenceFilter("test", 0.01, null));
+        filter.rebuild(1, VERSION, source -> source.accept("alice"));
+
+        filter.rebuild(1, VERSION, source -> source.accept("bob"));
+
+        assertFalse(filter.mightContain("alice"));
+    }
+
+    @Test
+    void usesPersistedFilterIfNoLoginWasWrittenSince() throws Exception {
+        Path directory = Files.createTempDirectory("filter");
+        Path file = directory.resolve("test.bloom");
+        try {
+            new UserExistenceFilter("test", 0.01, file).rebuild(1, VERSION, source -> source.accept("alice"));
+
+            UserExistenceFilter restarted = new UserExistenceFilter("test", 0.01, file);
+            restarted.load();
+
+            assertTrue(restarted.startListening(VERSION));
+            assertTrue(restarted.mightContain("alice"));
+            assertFalse(restarted.mightContain("mallory"));
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    @Test
+    void ignoresPersistedFilterOnceALoginWasWritten() throws Exception {
+        Path directory = Files.createTempDirectory("filter");
+        Path file = directory.resolve("test.bloom");
+        try {
+            new UserExistenceFilter("test", 0.01, file).rebuild(1, VERSION, source -> source.accept("alice"));
+
+            UserExistenceFilter restarted = new UserExistenceFilter("test", 0.01, file);
+            restarted.load();
+
+            // mallory was created while this node was down
+            assertFalse(restarted.startListening(VERSION + 1));
+            assertTrue(restarted.mightContain("mallory"));
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    private static UserExistenceFilter listening(UserExistenceFilter filter) {
+        filter.startListening(UserExistenceFilter.UNKNOWN_VERSION);
+        return filter;
+    }
+}
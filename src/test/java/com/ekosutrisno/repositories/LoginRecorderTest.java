@@ -0,0 +1,211 @@
+package com.ekosutrisno.repositories;
+
+import com.ekosutrisno.TestDatabase;
+import com.ekosutrisno.caches.UserExistenceFilter;
+import com.ekosutrisno.models.User;
+import com.ekosutrisno.tracing.Tracer;
+import org.junit.jupiter.api.Test;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LoginRecorderTest {
+    private static final int THREADS = 64;
+
+    private final List<Runnable> scheduledFlushes = new ArrayList<>();
+
+    @Test
+    void coalescesLoginsPerUser() {
+        LoginRecorder recorder = new LoginRecorder(unavailableDatabase(), "", 1000, scheduledFlushes::add);
+        UUID alice = UUID.randomUUID();
+        UUID bob = UUID.randomUUID();
+
+        long before = System.currentTimeMillis();
+        recorder.recordLogin(alice);
+        recorder.recordLogin(bob);
+        recorder.recordLogin(alice);
+        recorder.recordLogin(alice);
+
+        Map<UUID, LoginRecorder.PendingLogins> drained = recorder.drain();
+        assertEquals(2, drained.size());
+        assertEquals(3, drained.get(alice).count);
+        assertEquals(1, drained.get(bob).count);
+        assertTrue(drained.get(alice).lastLoginAt >= before);
+        assertTrue(recorder.drain().isEmpty());
+    }
+
+    @Test
+    void fullBufferSchedulesOneFlush() {
+        LoginRecorder recorder = new LoginRecorder(unavailableDatabase(), "", 2, scheduledFlushes::add);
+
+        recorder.recordLogin(UUID.randomUUID());
+        assertTrue(scheduledFlushes.isEmpty());
+        recorder.recordLogin(UUID.randomUUID());
+        recorder.recordLogin(UUID.randomUUID());
+
+        assertEquals(1, scheduledFlushes.size());
+    }
+
+    @Test
+    void failedFlushKeepsLoginsForTheNextOne() {
+        LoginRecorder recorder = new LoginRecorder(unavailableDatabase(), "", 1000, scheduledFlushes::add);
+        UUID alice = UUID.randomUUID();
+        recorder.recordLogin(alice);
+        recorder.recordLogin(alice);
+
+        recorder.flush();
+        recorder.recordLogin(alice);
+
+        assertEquals(3, recorder.drain().get(alice).count);
+    }
+
+    @Test
+    void concurrentLoginsAreNeitherLostNorDoubled() throws Exception {
+        int loginsPerThread = 10_000;
+        int users = 100;
+        List<UUID> userIds = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            userIds.add(UUID.randomUUID());
+        }
+        LoginRecorder recorder = new LoginRecorder(unavailableDatabase(), "", Integer.MAX_VALUE,
+                scheduledFlushes::add);
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (int thread = 0; thread < THREADS; thread++) {
+                int offset = thread;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < loginsPerThread; i++) {
+                        recorder.recordLogin(userIds.get((offset + i) % users));
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Map<UUID, LoginRecorder.PendingLogins> drained = recorder.drain();
+        long total = drained.values().stream().mapToLong(pending -> pending.count).sum();
+        assertEquals((long) THREADS * loginsPerThread, total);
+    }
+
+    @Test
+    void batchedFlushIsFasterThanAnUpdatePerLogin() {
+        int users = 100;
+        int logins = 2000;
+        EntityManagerFactory entityManagerFactory = TestDatabase.create(UUID.randomUUID().toString());
+        try {
+            List<User> stored = insertUsers(entityManagerFactory, users);
+            List<UUID> userIds = new ArrayList<>();
+            stored.forEach(user -> userIds.add(user.getId()));
+            Random random = new Random(42);
+
+            // What recording a login synchronously costs: one merge and commit on the login path
+            UserRepository userRepository = new UserRepository(entityManagerFactory.createEntityManager(),
+                    new Tracer(false, 0), User.UNSCOPED_REALM_ID,
+                    new UserExistenceFilter(User.UNSCOPED_REALM_ID, 0.01, null));
+            long updateUserNanos;
+            try {
+                long start = System.nanoTime();
+                for (int i = 0; i < logins; i++) {
+                    User user = userRepository.getUserById(userIds.get(random.nextInt(users)).toString());
+                    // A changed column, so every merge issues its UPDATE as a login write would
+                    user.setPhone(String.valueOf(i));
+                    userRepository.updateUser(user);
+                }
+                updateUserNanos = System.nanoTime() - start;
+            } finally {
+                userRepository.close();
+            }
+
+            // The same UPDATE the recorder uses, one transaction per login
+            LoginRecorder synchronous = new LoginRecorder(entityManagerFactory, User.UNSCOPED_REALM_ID,
+                    Integer.MAX_VALUE, scheduledFlushes::add);
+            long start = System.nanoTime();
+            for (int i = 0; i < logins; i++) {
+                synchronous.recordLogin(userIds.get(random.nextInt(users)));
+                synchronous.flush();
+            }
+            long updatePerLoginNanos = System.nanoTime() - start;
+
+            LoginRecorder batched = new LoginRecorder(entityManagerFactory, User.UNSCOPED_REALM_ID,
+                    Integer.MAX_VALUE, scheduledFlushes::add);
+            start = System.nanoTime();
+            for (int i = 0; i < logins; i++) {
+                batched.recordLogin(userIds.get(random.nextInt(users)));
+            }
+            batched.flush();
+            long batchedNanos = System.nanoTime() - start;
+
+            assertEquals(2L * logins, totalLoginCount(entityManagerFactory));
+            System.out.printf("%d logins of %d users: updateUser per login %d ms, UPDATE per login %d ms, " +
+                            "write-behind with one batched flush %d ms%n", logins, users,
+                    TimeUnit.NANOSECONDS.toMillis(updateUserNanos),
+                    TimeUnit.NANOSECONDS.toMillis(updatePerLoginNanos),
+                    TimeUnit.NANOSECONDS.toMillis(batchedNanos));
+            assertTrue(batchedNanos < updateUserNanos, "Batched flush was slower than an updateUser per login");
+            assertTrue(batchedNanos < updatePerLoginNanos, "Batched flush was slower than an UPDATE per login");
+        } finally {
+            entityManagerFactory.close();
+        }
+    }
+
+    private static List<User> insertUsers(EntityManagerFactory entityManagerFactory, int users) {
+        List<User> stored = new ArrayList<>();
+        EntityManager entityManager = entityManagerFactory.createEntityManager();
+        try {
+            entityManager.getTransaction().begin();
+            for (int i = 0; i < users; i++) {
+                User user = new User();
+                user.setUsername("user-" + i);
+                user.setEmail("user-" + i + "@example.com");
+                user.setPassword("password");
+                entityManager.persist(user);
+                stored.add(user);
+            }
+            entityManager.getTransaction().commit();
+        } finally {
+            entityManager.close();
+        }
+        return stored;
+    }
+
+    private static long totalLoginCount(EntityManagerFactory entityManagerFactory) {
+        EntityManager entityManager = entityManagerFactory.createEntityManager();
+        try {
+            return ((Number) entityManager.createNativeQuery("select sum(login_count) from tbl_user")
+                    .getSingleResult()).longValue();
+        } finally {
+            entityManager.close();
+        }
+    }
+
+    private static EntityManagerFactory unavailableDatabase() {
+        return (EntityManagerFactory) Proxy.newProxyInstance(LoginRecorderTest.class.getClassLoader(),
+                new Class<?>[]{EntityManagerFactory.class}, (proxy, method, args) -> {
+                    throw new PersistenceException("database unavailable");
+                });
+    }
+}
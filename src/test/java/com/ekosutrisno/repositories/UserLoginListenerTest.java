@@ -0,0 +1,58 @@
+package com.ekosutrisno.repositories;
+
+import com.ekosutrisno.caches.UserExistenceFilter;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UserLoginListenerTest {
+    private final UserLoginListener listener = new UserLoginListener("test", "jdbc:postgresql://localhost/test",
+            "user", "password");
+    private final AtomicInteger rebuilds = new AtomicInteger();
+
+    @Test
+    void notificationsReachTheFilterOfTheirRealm() {
+        UserExistenceFilter realmA = built("realm-a");
+        UserExistenceFilter realmB = built("realm-b");
+
+        listener.dispatch("{\"realm_id\": \"realm-a\", \"username\": \"Mallory\", \"email\": \"mallory@example.com\"}");
+
+        assertTrue(realmA.mightContain("mallory"));
+        assertTrue(realmA.mightContain("mallory@example.com"));
+        assertFalse(realmB.mightContain("mallory"));
+    }
+
+    @Test
+    void notificationsWithoutEmailOrForOtherRealmsAreIgnored() {
+        UserExistenceFilter realmA = built("realm-a");
+
+        listener.dispatch("{\"realm_id\": \"realm-a\", \"username\": \"bob\", \"email\": null}");
+        listener.dispatch("{\"realm_id\": \"realm-c\", \"username\": \"carol\", \"email\": null}");
+        listener.dispatch("not json");
+
+        assertTrue(realmA.mightContain("bob"));
+        assertFalse(realmA.mightContain("carol"));
+    }
+
+    @Test
+    void unregisteredFiltersStopShortCircuiting() {
+        UserExistenceFilter realmA = built("realm-a");
+
+        listener.unregister("realm-a");
+
+        assertTrue(listener.isEmpty());
+        assertTrue(realmA.mightContain("mallory"));
+        assertEquals(0, rebuilds.get());
+    }
+
+    /* A filter of a listening connection, built after listening started */
+    private UserExistenceFilter built(String realmId) {
+        UserExistenceFilter filter = new UserExistenceFilter(realmId, 0.01, null);
+        listener.register(realmId, filter, rebuilds::incrementAndGet);
+        filter.startListening(UserExistenceFilter.UNKNOWN_VERSION);
+        filter.rebuild(1, 1, source -> source.accept("alice"));
+        return filter;
+    }
+}
@@ -0,0 +1,161 @@
+package com.ekosutrisno.repositories;
+
+import com.ekosutrisno.TestDatabase;
+import com.ekosutrisno.caches.UserExistenceFilter;
+import com.ekosutrisno.models.User;
+import com.ekosutrisno.tracing.Tracer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UserRepositoryTest {
+    private static final String REALM_A = "realm-a";
+    private static final String REALM_B = "realm-b";
+
+    private final EntityManagerFactory entityManagerFactory = TestDatabase.create(UUID.randomUUID().toString());
+    private final List<UserRepository> repositories = new ArrayList<>();
+
+    @AfterEach
+    void close() {
+        repositories.forEach(UserRepository::close);
+        entityManagerFactory.close();
+    }
+
+    @Test
+    void createUserStoresTheRepositoryRealm() {
+        User user = repository(REALM_A).createUser(user("alice"));
+
+        assertEquals(REALM_A, user.getRealmId());
+        assertEquals(REALM_A, repository(REALM_A).getUserById(user.getId().toString()).getRealmId());
+    }
+
+    @Test
+    void lookupsOnlyFindUsersOfTheirRealm() {
+        User aliceA = repository(REALM_A).createUser(user("alice"));
+        User aliceB = repository(REALM_B).createUser(user("alice"));
+        UserRepository realmA = repository(REALM_A);
+
+        assertEquals(aliceA.getId(), realmA.getUserByUsername("alice").map(User::getId).orElse(null));
+        assertEquals(aliceA.getId(), realmA.getUserByEmail("alice@example.com").map(User::getId).orElse(null));
+        assertEquals(aliceB.getId(), repository(REALM_B).getUserByUsername("alice").map(User::getId).orElse(null));
+        assertNull(realmA.getUserById(aliceB.getId().toString()));
+        assertFalse(repository(User.UNSCOPED_REALM_ID).getUserByUsername("alice").isPresent());
+    }
+
+    @Test
+    void loginsAreUniquePerRealm() {
+        repository(REALM_A).createUser(user("alice"));
+        repository(REALM_B).createUser(user("alice"));
+
+        assertThrows(PersistenceException.class, () -> repository(REALM_A).createUser(user("alice")));
+    }
+
+    @Test
+    void countsListsAndSearchesOnlyTheirRealm() {
+        repository(REALM_A).createUser(user("alice"));
+        repository(REALM_A).createUser(user("albert"));
+        repository(REALM_B).createUser(user("alina"));
+        UserRepository realmA = repository(REALM_A);
+
+        assertEquals(2, realmA.size());
+        assertEquals(Arrays.asList("albert", "alice"), usernames(realmA.findAll()));
+        assertEquals(Collections.singletonList("albert"), usernames(realmA.findAll(0, 1)));
+        assertEquals(Arrays.asList("albert", "alice"), usernames(realmA.searchForUserByUsernameOrEmail("al")));
+        Set<String> logins = new HashSet<>();
+        realmA.forEachLogin(logins::add);
+        assertEquals(new HashSet<>(Arrays.asList("alice", "alice@example.com", "albert", "albert@example.com")),
+                logins);
+    }
+
+    @Test
+    void updateUserRejectsUsersOfAnotherRealm() {
+        User aliceB = repository(REALM_B).createUser(user("alice"));
+        UserRepository realmA = repository(REALM_A);
+
+        assertThrows(IllegalArgumentException.class, () -> realmA.updateUser(aliceB));
+        assertThrows(IllegalArgumentException.class, () -> realmA.updateUser(user("unsaved")));
+        aliceB.setPhone("123");
+        repository(REALM_B).updateUser(aliceB);
+    }
+
+    @Test
+    void lookupLatencyStaysFlatAsTenantsGrow() {
+        // Realm scoped lookups go through the (realm_id, username) index, in PostgreSQL also the realm partition
+        int usersPerTenant = 200;
+        int lookups = 2000;
+        int[] tenantCounts = {1, 10, 50};
+        long[] lookupNanos = new long[tenantCounts.length];
+        int tenants = 0;
+        for (int i = 0; i < tenantCounts.length; i++) {
+            for (; tenants < tenantCounts[i]; tenants++) {
+                insertTenant("tenant-" + tenants, usersPerTenant);
+            }
+            lookupNanos[i] = timeLookups(repository("tenant-0"), usersPerTenant, lookups);
+        }
+
+        StringBuilder report = new StringBuilder("getUserByUsername latency:");
+        for (int i = 0; i < tenantCounts.length; i++) {
+            report.append(String.format(" %d tenants (%d users) %d us,", tenantCounts[i],
+                    tenantCounts[i] * usersPerTenant, TimeUnit.NANOSECONDS.toMicros(lookupNanos[i] / lookups)));
+        }
+        System.out.println(report.substring(0, report.length() - 1));
+        // 50 times the rows, the lookup must not scan them
+        assertTrue(lookupNanos[tenantCounts.length - 1] < 3 * lookupNanos[0],
+                "Lookup latency grew with the number of tenants");
+    }
+
+    private long timeLookups(UserRepository repository, int usersPerTenant, int lookups) {
+        Random random = new Random(42);
+        // Warm up the statement cache and JIT before timing
+        for (int i = 0; i < lookups; i++) {
+            repository.getUserByUsername("user-" + random.nextInt(usersPerTenant));
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            assertTrue(repository.getUserByUsername("user-" + random.nextInt(usersPerTenant)).isPresent());
+        }
+        return System.nanoTime() - start;
+    }
+
+    private void insertTenant(String realmId, int users) {
+        EntityManager entityManager = entityManagerFactory.createEntityManager();
+        try {
+            entityManager.getTransaction().begin();
+            for (int i = 0; i < users; i++) {
+                User user = user("user-" + i);
+                user.setRealmId(realmId);
+                entityManager.persist(user);
+            }
+            entityManager.getTransaction().commit();
+        } finally {
+            entityManager.close();
+        }
+    }
+
+    private UserRepository repository(String realmId) {
+        UserRepository repository = new UserRepository(entityManagerFactory.createEntityManager(),
+                new Tracer(false, 0), realmId, new UserExistenceFilter(realmId, 0.01, null));
+        repositories.add(repository);
+        return repository;
+    }
+
+    private static User user(String username) {
+        User user = new User();
+        user.setUsername(username);
+        user.setEmail(username + "@example.com");
+        user.setPassword("password");
+        return user;
+    }
+
+    private static List<String> usernames(List<User> users) {
+        return users.stream().map(User::getUsername).collect(Collectors.toList());
+    }
+}
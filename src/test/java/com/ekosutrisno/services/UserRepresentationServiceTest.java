@@ -0,0 +1,226 @@
+package com.ekosutrisno.services;
+
+import com.ekosutrisno.caches.RoleGrantCache;
+import com.ekosutrisno.models.User;
+import com.ekosutrisno.repositories.UserRoleRepository;
+import com.ekosutrisno.tracing.Tracer;
+import org.junit.jupiter.api.Test;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleContainerModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.storage.federated.UserFederatedStorageProvider;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UserRepresentationServiceTest {
+    private static final RealmModel ROLE_REALM = stub(RealmModel.class,
+            Collections.singletonMap("getId", args -> "realm"));
+    private static final ClientModel CLIENT = stub(ClientModel.class,
+            Collections.singletonMap("getId", args -> "client"));
+
+    private final RoleModel externalRole = role("external", ROLE_REALM);
+    private final RoleModel clientRole = role("client-role", CLIENT);
+    private final RoleModel federatedRole = role("federated", ROLE_REALM);
+    private final RoleModel defaultRole = role("default", ROLE_REALM);
+    private final Map<String, RoleModel> roles = new HashMap<>();
+    private final AtomicInteger roleQueries = new AtomicInteger();
+    private final AtomicInteger federatedRoleQueries = new AtomicInteger();
+    /* Round trip of a role query, 0 in the functional tests */
+    private long queryLatencyMillis;
+
+    UserRepresentationServiceTest() {
+        roles.put(externalRole.getId(), externalRole);
+        roles.put(clientRole.getId(), clientRole);
+    }
+
+    @Test
+    void mergesExternalFederatedAndDefaultRoles() {
+        UserRepresentationService user = user(new RoleGrantCache(10, 60), true);
+
+        Set<RoleModel> expected = new HashSet<>(Arrays.asList(externalRole, clientRole, federatedRole, defaultRole));
+        assertEquals(expected, user.getRoleMappings());
+        assertEquals(expected, user.getRoleMappingsStream().collect(Collectors.toSet()));
+    }
+
+    @Test
+    void setAndStreamApisAgreeOnRealmAndClientRoles() {
+        UserRepresentationService user = user(new RoleGrantCache(10, 60), true);
+
+        assertEquals(new HashSet<>(Arrays.asList(externalRole, federatedRole, defaultRole)),
+                user.getRealmRoleMappings());
+        assertEquals(user.getRealmRoleMappings(), user.getRealmRoleMappingsStream().collect(Collectors.toSet()));
+        assertEquals(Collections.singleton(clientRole), user.getClientRoleMappings(CLIENT));
+        assertEquals(user.getClientRoleMappings(CLIENT),
+                user.getClientRoleMappingsStream(CLIENT).collect(Collectors.toSet()));
+        assertTrue(user.hasRole(externalRole));
+        assertTrue(user.hasRole(federatedRole));
+        assertTrue(user.hasRole(defaultRole));
+        assertFalse(user.hasRole(role("unassigned", ROLE_REALM)));
+    }
+
+    @Test
+    void disabledFallbackSkipsFederatedStorage() {
+        UserRepresentationService user = user(new RoleGrantCache(10, 60), false);
+
+        assertEquals(new HashSet<>(Arrays.asList(externalRole, clientRole, defaultRole)), user.getRoleMappings());
+        assertFalse(user.hasRole(federatedRole));
+        assertEquals(0, federatedRoleQueries.get());
+    }
+
+    @Test
+    void cachedRoleIdsAreQueriedOnce() {
+        UserRepresentationService user = user(new RoleGrantCache(10, 60), true);
+
+        user.getRoleMappingsStream().count();
+        user.hasRole(externalRole);
+        user.getClientRoleMappingsStream(CLIENT).count();
+
+        assertEquals(1, roleQueries.get());
+        assertEquals(3, federatedRoleQueries.get());
+    }
+
+    @Test
+    void tokenMapperLatencyWithAndWithoutCache() {
+        // Stands in for a token mapper reading the role mappings and checking one role, 1 ms per query
+        queryLatencyMillis = 1;
+        int tokens = 100;
+
+        long uncachedNanos = timeTokens(user(new RoleGrantCache(10, 0), true), tokens, 3);
+        int uncachedQueries = roleQueries.getAndSet(0) + federatedRoleQueries.getAndSet(0);
+        long cachedNanos = timeTokens(user(new RoleGrantCache(10, 60), true), tokens, 3);
+        int cachedRoleQueries = roleQueries.getAndSet(0);
+        int cachedFederatedQueries = federatedRoleQueries.getAndSet(0);
+        long migratedNanos = timeTokens(user(new RoleGrantCache(10, 60), false), tokens, 2);
+        int migratedQueries = roleQueries.getAndSet(0) + federatedRoleQueries.getAndSet(0);
+
+        System.out.printf("%d tokens: %d ms / %d queries without cache, %d ms / %d queries cached with federated " +
+                        "fallback, %d ms / %d queries cached without fallback%n", tokens,
+                TimeUnit.NANOSECONDS.toMillis(uncachedNanos), uncachedQueries,
+                TimeUnit.NANOSECONDS.toMillis(cachedNanos), cachedRoleQueries + cachedFederatedQueries,
+                TimeUnit.NANOSECONDS.toMillis(migratedNanos), migratedQueries);
+        assertEquals(4 * tokens, uncachedQueries);
+        // The cache removes the tbl_user_role queries, the federated fallback still runs per read
+        assertEquals(1, cachedRoleQueries);
+        assertEquals(2 * tokens, cachedFederatedQueries);
+        assertEquals(1, migratedQueries);
+        assertTrue(migratedNanos < cachedNanos && cachedNanos < uncachedNanos);
+    }
+
+    private long timeTokens(UserRepresentationService user, int tokens, int realmRoles) {
+        long start = System.nanoTime();
+        for (int i = 0; i < tokens; i++) {
+            assertEquals(realmRoles, user.getRealmRoleMappingsStream().count());
+            assertTrue(user.hasRole(externalRole));
+        }
+        return System.nanoTime() - start;
+    }
+
+    private UserRepresentationService user(RoleGrantCache roleGrantCache, boolean federatedRoleFallback) {
+        User entity = new User();
+        entity.setId(UUID.randomUUID());
+        ComponentModel component = new ComponentModel();
+        component.setId("component");
+
+        Map<String, Function<Object[], Object>> realmAnswers = new HashMap<>();
+        realmAnswers.put("getId", args -> "realm");
+        realmAnswers.put("getRoleById", args -> roles.get((String) args[0]));
+        realmAnswers.put("getDefaultRole", args -> stub(RoleModel.class,
+                Collections.singletonMap("getCompositesStream", composites -> Stream.of(defaultRole))));
+        RealmModel realm = stub(RealmModel.class, realmAnswers);
+
+        UserFederatedStorageProvider federatedStorage = stub(UserFederatedStorageProvider.class,
+                Collections.singletonMap("getRoleMappings", args -> {
+                    federatedRoleQueries.incrementAndGet();
+                    sleep(queryLatencyMillis);
+                    return Collections.singleton(federatedRole);
+                }));
+        KeycloakSession session = stub(KeycloakSession.class,
+                Collections.singletonMap("userFederatedStorage", args -> federatedStorage));
+
+        UserRoleRepository userRoleRepository = new UserRoleRepository(roleTable(), new Tracer(false, 0));
+        return new UserRepresentationService(session, realm, component, entity, null, userRoleRepository,
+                roleGrantCache, federatedRoleFallback);
+    }
+
+    /* tbl_user_role holding a realm role and a client role for every user */
+    @SuppressWarnings("unchecked")
+    private EntityManager roleTable() {
+        Map<String, Function<Object[], Object>> queryAnswers = new HashMap<>();
+        queryAnswers.put("getResultList", args -> {
+            roleQueries.incrementAndGet();
+            sleep(queryLatencyMillis);
+            return Arrays.asList(externalRole.getId(), clientRole.getId());
+        });
+        TypedQuery<String>[] query = new TypedQuery[1];
+        queryAnswers.put("setParameter", args -> query[0]);
+        query[0] = stub(TypedQuery.class, queryAnswers);
+        return stub(EntityManager.class, Collections.singletonMap("createNamedQuery", args -> query[0]));
+    }
+
+    private static RoleModel role(String id, RoleContainerModel container) {
+        Map<String, Function<Object[], Object>> answers = new HashMap<>();
+        answers.put("getId", args -> id);
+        answers.put("getName", args -> id);
+        answers.put("isClientRole", args -> container instanceof ClientModel);
+        answers.put("getContainer", args -> container);
+        answers.put("getContainerId", args -> container.getId());
+        return stub(RoleModel.class, answers);
+    }
+
+    /* Interface stub answering unlisted methods with empty values */
+    private static <T> T stub(Class<T> type, Map<String, Function<Object[], Object>> answers) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            Function<Object[], Object> answer = answers.get(method.getName());
+            if (answer != null) {
+                return answer.apply(args);
+            }
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return type.getSimpleName() + "@" + System.identityHashCode(proxy);
+            }
+            Class<?> returnType = method.getReturnType();
+            if (returnType == boolean.class) {
+                return false;
+            } else if (returnType == int.class || returnType == long.class) {
+                return returnType == int.class ? (Object) 0 : (Object) 0L;
+            } else if (returnType == Set.class) {
+                return Collections.emptySet();
+            } else if (returnType == List.class) {
+                return Collections.emptyList();
+            } else if (returnType == Map.class) {
+                return Collections.emptyMap();
+            } else if (returnType == Stream.class) {
+                return Stream.empty();
+            }
+            return null;
+        }));
+    }
+
+    private static void sleep(long millis) {
+        if (millis == 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
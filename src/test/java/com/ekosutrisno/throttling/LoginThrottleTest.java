@@ -0,0 +1,148 @@
+package com.ekosutrisno.throttling;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LoginThrottleTest {
+    private static final int THREADS = 64;
+
+    private final AtomicLong clock = new AtomicLong();
+
+    @Test
+    void blocksOnceMaxFailuresAreReached() {
+        LoginThrottle throttle = new LoginThrottle("test", 3, 60, clock::get);
+
+        throttle.recordFailure("alice");
+        throttle.recordFailure("alice");
+        assertFalse(throttle.isBlocked("alice"));
+        throttle.recordFailure("alice");
+
+        assertTrue(throttle.isBlocked("alice"));
+        assertFalse(throttle.isBlocked("bob"));
+        assertEquals(3, throttle.getRecordedFailures());
+        assertEquals(1, throttle.getRejectedAttempts());
+    }
+
+    @Test
+    void failuresExpireAfterTwoWindows() {
+        LoginThrottle throttle = new LoginThrottle("test", 2, 60, clock::get);
+        throttle.recordFailure("alice");
+        throttle.recordFailure("alice");
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(60));
+        assertTrue(throttle.isBlocked("alice"));
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(60));
+        assertFalse(throttle.isBlocked("alice"));
+    }
+
+    @Test
+    void idleThrottleForgetsPreviousWindow() {
+        LoginThrottle throttle = new LoginThrottle("test", 2, 60, clock::get);
+        throttle.recordFailure("alice");
+        throttle.recordFailure("alice");
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(120));
+
+        assertFalse(throttle.isBlocked("alice"));
+    }
+
+    @Test
+    void keysWithTheSameStringHashCodeAreCountedSeparately() {
+        LoginThrottle throttle = new LoginThrottle("test", 2, 60, clock::get);
+        assertEquals("Aa@10.0.0.1".hashCode(), "BB@10.0.0.1".hashCode());
+
+        throttle.recordFailure("Aa@10.0.0.1");
+        throttle.recordFailure("Aa@10.0.0.1");
+
+        assertTrue(throttle.isBlocked("Aa@10.0.0.1"));
+        assertFalse(throttle.isBlocked("BB@10.0.0.1"));
+    }
+
+    @Test
+    void disabledThrottleNeverBlocks() {
+        LoginThrottle throttle = new LoginThrottle("test", 0, 60, clock::get);
+        for (int i = 0; i < 100; i++) {
+            throttle.recordFailure("alice");
+        }
+
+        assertFalse(throttle.isBlocked("alice"));
+        assertEquals(0, throttle.getRecordedFailures());
+    }
+
+    @Test
+    void countsEveryConcurrentFailureOfOneKey() throws Exception {
+        int failuresPerThread = 1000;
+        LoginThrottle throttle = new LoginThrottle("test", THREADS * failuresPerThread + 1, 60, clock::get);
+
+        runConcurrently(thread -> {
+            for (int i = 0; i < failuresPerThread; i++) {
+                throttle.recordFailure("alice");
+            }
+        });
+
+        assertEquals(THREADS * failuresPerThread, throttle.getRecordedFailures());
+        assertFalse(throttle.isBlocked("alice"));
+        throttle.recordFailure("alice");
+        assertTrue(throttle.isBlocked("alice"));
+    }
+
+    @Test
+    void concurrentFailuresOfDistinctKeysDoNotBlockEachOther() throws Exception {
+        int keysPerThread = 50;
+        LoginThrottle throttle = new LoginThrottle("test", 3, 60, clock::get);
+
+        runConcurrently(thread -> {
+            for (int i = 0; i < keysPerThread; i++) {
+                throttle.recordFailure("user-" + thread + "-" + i);
+                throttle.isBlocked("user-" + thread + "-" + i);
+            }
+        });
+
+        int blocked = 0;
+        for (int thread = 0; thread < THREADS; thread++) {
+            for (int i = 0; i < keysPerThread; i++) {
+                if (throttle.isBlocked("user-" + thread + "-" + i)) {
+                    blocked++;
+                }
+            }
+        }
+        assertEquals(0, blocked);
+        assertEquals(THREADS * keysPerThread, throttle.getRecordedFailures());
+    }
+
+    private static void runConcurrently(ThreadTask task) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (int thread = 0; thread < THREADS; thread++) {
+                int id = thread;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    task.run(id);
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private interface ThreadTask {
+        void run(int thread);
+    }
+}
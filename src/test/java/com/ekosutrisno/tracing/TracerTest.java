@@ -0,0 +1,121 @@
+package com.ekosutrisno.tracing;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TracerTest {
+    private final AtomicLong clock = new AtomicLong();
+
+    @AfterEach
+    void clearCurrentSpan() {
+        Tracer.restoreSpan(null);
+    }
+
+    @Test
+    void inactiveTracerSharesTheNoopSpan() {
+        Tracer tracer = new Tracer(false, 0, clock::get);
+
+        Span span = tracer.startSpan("UserRepository.getUserByUsername");
+
+        assertFalse(tracer.isActive());
+        assertSame(Span.NOOP, span);
+        assertSame(Span.NOOP, tracer.startSpan("UserRepository.getUserByEmail"));
+        assertNull(Tracer.currentSpan());
+        span.close();
+        assertNull(Tracer.currentSpan());
+    }
+
+    @Test
+    void slowQueryLogAloneActivatesTracing() {
+        Tracer tracer = new Tracer(false, 100, clock::get);
+
+        try (Span span = tracer.startSpan("UserRepository.getUserByUsername")) {
+            assertTrue(tracer.isActive());
+            assertNotSame(Span.NOOP, span);
+        }
+    }
+
+    @Test
+    void nestedSpansRestoreTheirParent() {
+        Tracer tracer = new Tracer(true, 0, clock::get);
+
+        try (Span outer = tracer.startSpan("ErajayaKeycloakStorageProvider.getUserByUsername")) {
+            try (Span inner = tracer.startSpan("UserRepository.getUserByUsername")) {
+                assertSame(inner, Tracer.currentSpan());
+            }
+            assertSame(outer, Tracer.currentSpan());
+        }
+        assertNull(Tracer.currentSpan());
+    }
+
+    @Test
+    void parentAddsUpAcquireAndStatementTimeOfItsChildren() {
+        Tracer tracer = new Tracer(true, 0, clock::get);
+
+        try (Span outer = tracer.startSpan("ErajayaKeycloakStorageProvider.getUserByUsername")) {
+            try (Span first = tracer.startSpan("UserRepository.getUserByUsername")) {
+                acquire(5);
+                execute(20);
+            }
+            try (Span second = tracer.startSpan("UserRoleRepository.getRoleIds")) {
+                execute(30);
+            }
+            execute(1);
+
+            assertEquals(millis(5), outer.getAcquireNanos());
+            assertEquals(millis(51), outer.getStatementNanos());
+        }
+    }
+
+    @Test
+    void slowQueryThresholdCountsStatementTimeOnly() {
+        Tracer tracer = new Tracer(false, 100, clock::get);
+
+        try (Span poolWait = tracer.startSpan("UserRepository.getUserByUsername")) {
+            acquire(500);
+            execute(50);
+            // Row hydration after the statement
+            clock.addAndGet(millis(500));
+
+            assertFalse(poolWait.isSlowQuery());
+        }
+        try (Span slowStatement = tracer.startSpan("UserRepository.getUserByUsername")) {
+            execute(150);
+
+            assertTrue(slowStatement.isSlowQuery());
+        }
+    }
+
+    @Test
+    void spansWithoutStatementsAreNeverSlowQueries() {
+        Tracer tracer = new Tracer(false, 100, clock::get);
+
+        try (Span span = tracer.startSpan("ErajayaKeycloakStorageProvider.getUserByUsername")) {
+            clock.addAndGet(millis(500));
+
+            assertFalse(span.isSlowQuery());
+        }
+    }
+
+    private void acquire(long millis) {
+        TracingSessionEventListener.INSTANCE.jdbcConnectionAcquisitionStart();
+        clock.addAndGet(millis(millis));
+        TracingSessionEventListener.INSTANCE.jdbcConnectionAcquisitionEnd();
+    }
+
+    private void execute(long millis) {
+        TracingStatementInspector.INSTANCE.inspect("select u from User u");
+        TracingSessionEventListener.INSTANCE.jdbcExecuteStatementStart();
+        clock.addAndGet(millis(millis));
+        TracingSessionEventListener.INSTANCE.jdbcExecuteStatementEnd();
+    }
+
+    private static long millis(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+}